@@ -0,0 +1,81 @@
+package pl.edu.agh.mindmap.merge;
+
+import junit.framework.TestCase;
+
+import org.xmind.core.Core;
+import org.xmind.core.IWorkbook;
+import org.xmind.core.io.ByteArrayStorage;
+import org.xmind.core.io.DirectoryStorage;
+import org.xmind.core.io.IStorage;
+
+import java.io.File;
+import java.util.UUID;
+
+import pl.edu.agh.mindmap.Utils;
+
+/**
+ * Checks that MemoryBudget moves temp storages which do not fit into the budget to disk and back to memory.
+ */
+public class MemoryBudgetTest extends TestCase {
+    private File cacheDir;
+    private IWorkbook workbook;
+    private IStorage storage;
+    private long size;
+
+    @Override
+    protected void setUp() throws Exception {
+        cacheDir = new File(System.getProperty("java.io.tmpdir"), "memory-budget-" + UUID.randomUUID());
+        assertTrue(cacheDir.mkdirs());
+        workbook = Core.getWorkbookBuilder().createWorkbook();
+        storage = new ByteArrayStorage();
+        workbook.setTempStorage(storage);
+        workbook.getPrimarySheet().getRootTopic().setTitleText("root");
+        workbook.saveTemp();
+        size = Utils.storageSize(storage);
+        assertTrue(size > 0);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        delete(cacheDir);
+    }
+
+    public void testStorageOverBudgetIsMovedToDisk() throws Exception {
+        MemoryBudget budget = new MemoryBudget(cacheDir, size - 1);
+        assertEquals(size, budget.fit(workbook));
+        assertTrue(workbook.getTempStorage() instanceof DirectoryStorage);
+        assertEquals(0, budget.getUsed());
+        assertEquals(size, budget.getOnDisk());
+        assertEquals(size, Utils.storageSize(workbook.getTempStorage()));
+        assertEquals(1, cacheDir.list().length);
+    }
+
+    public void testReleaseMovesStorageBackToMemory() throws Exception {
+        MemoryBudget budget = new MemoryBudget(cacheDir, 0);
+        budget.fit(workbook);
+        budget.release();
+        assertTrue(workbook.getTempStorage() instanceof ByteArrayStorage);
+        assertEquals(size, Utils.storageSize(workbook.getTempStorage()));
+        assertEquals(0, budget.getOnDisk());
+        assertEquals(0, cacheDir.list().length);
+    }
+
+    public void testStorageWithinBudgetStaysInMemory() throws Exception {
+        MemoryBudget budget = new MemoryBudget(cacheDir, size);
+        assertEquals(size, budget.fit(workbook));
+        assertSame(storage, workbook.getTempStorage());
+        assertEquals(size, budget.getUsed());
+        assertEquals(0, budget.getOnDisk());
+        budget.release();
+        assertSame(storage, workbook.getTempStorage());
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children)
+                delete(child);
+        }
+        file.delete();
+    }
+}
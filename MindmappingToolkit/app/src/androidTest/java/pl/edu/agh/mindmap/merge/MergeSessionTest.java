@@ -0,0 +1,170 @@
+package pl.edu.agh.mindmap.merge;
+
+import junit.framework.TestCase;
+
+import org.w3c.dom.Element;
+import org.xmind.core.Core;
+import org.xmind.core.IAdaptable;
+import org.xmind.core.IRelationship;
+import org.xmind.core.ISheet;
+import org.xmind.core.ITopic;
+import org.xmind.core.IWorkbook;
+import org.xmind.core.io.ByteArrayStorage;
+import org.xmind.core.style.IStyle;
+import org.xmind.core.style.IStyleSheet;
+
+import java.util.List;
+import java.util.Map;
+
+import pl.edu.agh.mindmap.Utils;
+
+/**
+ * Checks that edits of properties compared by the merge make MergeSession merge the edited elements again.
+ */
+public class MergeSessionTest extends TestCase {
+    /**
+     * Modification time given to the initial elements, so that any later edit changes it.
+     */
+    private static final long INITIAL_TIME = 1000;
+
+    private IWorkbook source, target;
+    private ITopic sourceTopic, targetTopic;
+    private IStyle targetStyle;
+    private MergeSession session;
+
+    @Override
+    protected void setUp() throws Exception {
+        source = Core.getWorkbookBuilder().createWorkbook();
+        source.setTempStorage(new ByteArrayStorage());
+        ISheet sheet = source.getPrimarySheet();
+        ITopic root = sheet.getRootTopic();
+        ITopic topic = source.createTopic();
+        ITopic other = source.createTopic();
+        root.add(topic);
+        root.add(other);
+        sheet.addRelationship(source.createRelationship(topic, other));
+        IStyle style = source.getStyleSheet().createStyle(IStyle.TOPIC);
+        style.setProperty("fo:color", "#000000");
+        source.getStyleSheet().addStyle(style, IStyleSheet.NORMAL_STYLES);
+        // sheet left identical in source and target
+        ISheet identicalSheet = source.createSheet();
+        identicalSheet.replaceRootTopic(source.createTopic());
+        identicalSheet.getRootTopic().add(source.createTopic());
+        source.addSheet(identicalSheet);
+        for (IAdaptable element : new IAdaptable[]{sheet, root, topic, other, identicalSheet,
+                identicalSheet.getRootTopic(), identicalSheet.getRootTopic().getAllChildren().get(0)})
+            setModifiedTime(element, INITIAL_TIME);
+
+        target = Utils.cloneWorkbook(source);
+        target.getPrimarySheet().getRootTopic().setTitleText("target");
+        // sheets of the same modification time are not merged
+        assertTrue(target.getPrimarySheet().getModifiedTime() != INITIAL_TIME);
+        targetStyle = target.getStyleSheet().findStyle(style.getId());
+        targetStyle.setProperty("fo:color", "#ffffff");
+
+        sourceTopic = topic;
+        targetTopic = (ITopic) target.findElement(topic.getId(), null);
+        session = new MergeSession(source, target);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        session.close();
+    }
+
+    public void testTitleWidthChangeIsMergedAgain() {
+        sourceTopic.setTitleWidth(300);
+        assertFalse(remergedConflict().haveIdenticalTitleWidth());
+    }
+
+    public void testImageSourceChangeIsMergedAgain() {
+        sourceTopic.getImage().setSource("http://example.com/image.png");
+        assertFalse(remergedConflict().haveIdenticalImage());
+    }
+
+    public void testImageSizeChangeIsMergedAgain() {
+        sourceTopic.getImage().setSize(100, 50);
+        assertFalse(remergedConflict().haveIdenticalImage());
+    }
+
+    public void testImageAlignmentChangeIsMergedAgain() {
+        targetTopic.getImage().setAlignment("left");
+        assertFalse(remergedConflict().haveIdenticalImage());
+    }
+
+    public void testNumberFormatChangeIsMergedAgain() {
+        sourceTopic.getNumbering().setFormat("org.xmind.numbering.arabic");
+        assertFalse(remergedConflict().haveIdenticalNumbering());
+    }
+
+    public void testNumberingPrefixChangeIsMergedAgain() {
+        sourceTopic.getNumbering().setPrefix("(");
+        assertFalse(remergedConflict().haveIdenticalNumbering());
+    }
+
+    public void testNumberingSuffixChangeIsMergedAgain() {
+        targetTopic.getNumbering().setSuffix(")");
+        assertFalse(remergedConflict().haveIdenticalNumbering());
+    }
+
+    public void testRelationshipEndChangeIsMergedAgain() {
+        Conflict<IRelationship> before = session.getSheetMergers().get(0).getRelationshipConflicts().get(0);
+        IRelationship relationship = before.getSource();
+        relationship.setEnd2Id(source.getPrimarySheet().getRootTopic().getId());
+        session.remerge();
+        // relationships of the sheet are paired again, so the conflict is a new one
+        assertNotSame(before, session.getSheetMergers().get(0).getRelationshipConflicts().get(0));
+    }
+
+    public void testAddedStyleIsMergedAgain() {
+        IStyle style = source.getStyleSheet().createStyle(IStyle.TOPIC);
+        style.setProperty("fo:color", "#ff0000");
+        session.remerge();
+        source.getStyleSheet().addStyle(style, IStyleSheet.NORMAL_STYLES);
+        session.remerge();
+        assertNotNull(session.getResult().getStyleSheet().findStyle(style.getId()));
+    }
+
+    public void testRemovedStyleIsMergedAgain() {
+        assertEquals(1, styleConflicts().size());
+        target.getStyleSheet().removeStyle(targetStyle, IStyleSheet.NORMAL_STYLES);
+        session.remerge();
+        assertTrue(styleConflicts().isEmpty());
+    }
+
+    public void testChangeOfIdenticalSheetIsMerged() {
+        ISheet sheet = source.getSheets().get(1);
+        ITopic topic = sheet.getRootTopic().getAllChildren().get(0);
+        topic.setTitleText("source");
+        for (SheetMerger merger : session.remerge()) {
+            if (merger.getSource().equals(sheet)) {
+                assertEquals(topic.getId(), merger.getTopicConflicts().get(0).getSource().getId());
+                return;
+            }
+        }
+        fail("Changed sheet was not merged");
+    }
+
+    /**
+     * Sets modification time of a sheet or topic directly, instead of waiting until the clock moves on.
+     */
+    private static void setModifiedTime(IAdaptable element, long time) {
+        ((Element) element.getAdapter(Element.class)).setAttribute("timestamp", Long.toString(time));
+    }
+
+    private TopicConflict remergedConflict() {
+        for (SheetMerger merger : session.remerge()) {
+            for (Conflict<ITopic> conflict : merger.getTopicConflicts()) {
+                if (conflict.getSource().getId().equals(sourceTopic.getId()))
+                    return (TopicConflict) conflict;
+            }
+        }
+        fail("Changed topic was not merged again");
+        return null;
+    }
+
+    private List<Conflict<IStyle>> styleConflicts() {
+        Map<String, List<Conflict<IStyle>>> conflicts = session.getStyleConflicts();
+        return conflicts.get(IStyleSheet.NORMAL_STYLES);
+    }
+}
@@ -5,10 +5,16 @@ import org.xmind.core.Core;
 import org.xmind.core.CoreException;
 import org.xmind.core.IWorkbook;
 import org.xmind.core.io.ByteArrayStorage;
+import org.xmind.core.io.IInputSource;
+import org.xmind.core.io.IOutputTarget;
+import org.xmind.core.io.IStorage;
 
 import java.io.Closeable;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Iterator;
 
 public class Utils {
     public static IWorkbook cloneWorkbook(IWorkbook workbook) throws IOException, CoreException {
@@ -18,6 +24,67 @@ public class Utils {
         return Core.getWorkbookBuilder().loadFromStorage(workbook.getTempStorage());
     }
 
+    /**
+     * Clones workbook into given storage, which becomes temp storage of the clone.
+     * Content and attachments of the workbook are copied entry by entry, so storage may be kept on disk.
+     */
+    public static IWorkbook cloneWorkbook(IWorkbook workbook, IStorage storage) throws IOException, CoreException {
+        if (workbook.getTempStorage() == null)
+            workbook.setTempStorage(new ByteArrayStorage());
+        workbook.saveTemp();
+        copyStorage(workbook.getTempStorage(), storage);
+        return Core.getWorkbookBuilder().loadFromStorage(storage);
+    }
+
+    /**
+     * Copies all the entries of one storage to another.
+     * @throws IOException thrown if an entry cannot be read or written.
+     */
+    public static void copyStorage(IStorage from, IStorage to) throws IOException {
+        IInputSource in = from.getInputSource();
+        IOutputTarget out = to.getOutputTarget();
+        byte[] buffer = new byte[8192];
+        Iterator<String> entries = in.getEntries();
+        while (entries.hasNext()) {
+            String entry = entries.next();
+            InputStream is = in.getEntryStream(entry);
+            if (is == null)
+                throw new IOException("Cannot read entry " + entry);
+            try {
+                OutputStream os = out.getEntryStream(entry);
+                if (os == null)
+                    throw new IOException("Cannot write entry " + entry);
+                try {
+                    int read;
+                    while ((read = is.read(buffer)) != -1)
+                        os.write(buffer, 0, read);
+                } catch (IOException e) {
+                    closeQuietly(os);
+                    throw e;
+                }
+                // failure to flush the entry has to be reported
+                os.close();
+            } finally {
+                closeQuietly(is);
+            }
+        }
+    }
+
+    /**
+     * Returns total size of entries of the storage in bytes, as reported by the storage. Entries are not read.
+     */
+    public static long storageSize(IStorage storage) {
+        IInputSource in = storage.getInputSource();
+        long size = 0;
+        Iterator<String> entries = in.getEntries();
+        while (entries.hasNext()) {
+            long entrySize = in.getEntrySize(entries.next());
+            if (entrySize > 0)
+                size += entrySize;
+        }
+        return size;
+    }
+
     public static boolean safeEquals(Object o1, Object o2) {
         if (o1 == null) {
             return o2 == null;
@@ -0,0 +1,122 @@
+package pl.edu.agh.mindmap.local;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Output stream which replaces a file atomically. Data is written through a large buffer and a file channel
+ * to a uniquely named temporary file in the same directory, so concurrent saves of the same file do not overwrite
+ * each other's data. commit() flushes the data to the storage device, renames the temporary file to the target file
+ * and syncs the directory, so the target file is either old or completely written, never corrupt.
+ * close() without commit() discards the written data. This class does not depend on Android, directories are synced
+ * by subclasses, see syncDirectory().
+ */
+public class AtomicFileOutputStream extends OutputStream {
+    public static final int DEFAULT_BUFFER_SIZE = 256 * 1024;
+
+    private final File file;
+    private final File directory;
+    private final File tempFile;
+    private final FileOutputStream out;
+    private final FileChannel channel;
+    private final ByteBuffer buffer;
+    private long written;
+    private boolean closed;
+
+    public AtomicFileOutputStream(File file) throws IOException {
+        this(file, DEFAULT_BUFFER_SIZE);
+    }
+
+    public AtomicFileOutputStream(File file, int bufferSize) throws IOException {
+        this.file = file;
+        directory = file.getAbsoluteFile().getParentFile();
+        tempFile = File.createTempFile("." + file.getName() + "-", ".tmp", directory);
+        out = new FileOutputStream(tempFile);
+        channel = out.getChannel();
+        buffer = ByteBuffer.allocateDirect(bufferSize);
+    }
+
+    /**
+     * Invoked after each buffer is written to the temporary file.
+     * @param bytesWritten total number of bytes written so far.
+     */
+    protected void onBytesWritten(long bytesWritten) {
+    }
+
+    /**
+     * Invoked after the temporary file is renamed to the target file. Should force the directory entry of the target
+     * file to the storage device, so the rename survives a crash. Java 7 without java.nio.file cannot open
+     * a directory, so the default implementation does nothing.
+     */
+    protected void syncDirectory(File directory) throws IOException {
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (!buffer.hasRemaining())
+            flushBuffer();
+        buffer.put((byte) b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (!buffer.hasRemaining())
+                flushBuffer();
+            int n = Math.min(len, buffer.remaining());
+            buffer.put(b, off, n);
+            off += n;
+            len -= n;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        flushBuffer();
+    }
+
+    private void flushBuffer() throws IOException {
+        if (closed)
+            throw new IOException("Stream closed");
+        buffer.flip();
+        while (buffer.hasRemaining())
+            written += channel.write(buffer);
+        buffer.clear();
+        onBytesWritten(written);
+    }
+
+    /**
+     * Writes the remaining data, forces it to the storage device, replaces the target file with the written one
+     * and syncs the directory. The stream is closed afterwards.
+     */
+    public void commit() throws IOException {
+        flushBuffer();
+        channel.force(true);
+        closed = true;
+        out.close();
+        if (!tempFile.renameTo(file)) {
+            tempFile.delete();
+            throw new IOException("Cannot replace " + file);
+        }
+        syncDirectory(directory);
+    }
+
+    /**
+     * Closes the stream. If it was not committed, written data is discarded and the target file is left unchanged.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed)
+            return;
+        closed = true;
+        try {
+            out.close();
+        } finally {
+            tempFile.delete();
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package pl.edu.agh.mindmap.local;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.IOException;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+
+/**
+ * Forces the entries of a directory to the storage device. android.system.Os is available since Lollipop,
+ * so callers have to check the version of the platform first.
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+class DirectorySync {
+    private DirectorySync() {
+    }
+
+    static void sync(File directory) throws IOException {
+        try {
+            FileDescriptor fd = Os.open(directory.getPath(), OsConstants.O_RDONLY, 0);
+            try {
+                Os.fsync(fd);
+            } finally {
+                Os.close(fd);
+            }
+        } catch (ErrnoException e) {
+            throw new IOException("Cannot sync directory " + directory, e);
+        }
+    }
+}
@@ -0,0 +1,388 @@
+package pl.edu.agh.mindmap.local;
+
+import org.xmind.core.io.IInputSource;
+import pl.edu.agh.mindmap.Utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Writes an .xmind archive from a ZipFileStorage, copying unchanged entries byte by byte in their compressed form
+ * from the archive the storage opened. Only entries written since then are compressed again, streamed to the output
+ * with a data descriptor, so saving after a small edit does not inflate and deflate attachments and revisions
+ * and no entry is buffered in memory.
+ * Archives which need ZIP64 extensions (more than 65534 entries or 4 GB) are not supported: canWrite() returns false
+ * if the archive of the storage or the archive to be written needs them, write() checks the written archive.
+ * This class does not depend on Android.
+ */
+public class IncrementalZipWriter {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int LOCAL_HEADER = 0x04034b50;
+    private static final int CENTRAL_HEADER = 0x02014b50;
+    private static final int END_OF_CENTRAL_DIRECTORY = 0x06054b50;
+    private static final int DATA_DESCRIPTOR = 0x08074b50;
+    private static final int MAX_ENTRIES = 0xfffe;
+    private static final long MAX_OFFSET = 0xfffffffeL;
+    private static final int STORED = 0, DEFLATED = 8;
+    private static final int FLAG_DATA_DESCRIPTOR = 0x0008;
+    private static final int FLAG_UTF8 = 0x0800;
+
+    private final ZipFileStorage storage;
+    private final Map<String, ArchiveEntry> archiveEntries;
+
+    private static class ArchiveEntry {
+        byte[] name;
+        int flags, method, time, date;
+        long crc, compressedSize, size;
+        long offset;
+    }
+
+    /**
+     * Reads central directory of the archive opened by the storage.
+     */
+    public IncrementalZipWriter(ZipFileStorage storage) throws IOException {
+        this.storage = storage;
+        RandomAccessFile archive = storage.getArchive();
+        synchronized (archive) {
+            archiveEntries = unchanged() ? readCentralDirectory(archive) : null;
+        }
+    }
+
+    /**
+     * Returns false if the archive cannot be copied incrementally: it uses ZIP64 or encryption,
+     * or it was changed since the storage opened it, or the current entries of the storage would need ZIP64.
+     * Entries have to be written to the storage before, so their sizes are known.
+     */
+    public boolean canWrite() throws IOException {
+        return archiveEntries != null && unchanged() && fitsWithoutZip64();
+    }
+
+    /**
+     * Estimates size of the written archive from sizes of copied entries and the worst case of deflating
+     * the other entries.
+     */
+    private boolean fitsWithoutZip64() {
+        IInputSource input = storage.getInputSource();
+        Iterator<String> names = input.getEntries();
+        int count = 0;
+        long size = 22;
+        while (names.hasNext()) {
+            String name = names.next();
+            if (++count > MAX_ENTRIES)
+                return false;
+            // local header, data descriptor and central header with the name in both headers
+            size += 30 + 16 + 46 + 2 * name.getBytes(UTF_8).length;
+            ArchiveEntry original = storage.isModified(name) ? null : archiveEntries.get(name);
+            if (original != null) {
+                size += original.compressedSize;
+            } else {
+                long entrySize = input.getEntrySize(name);
+                if (entrySize < 0 || entrySize > MAX_OFFSET)
+                    return false;
+                size += entrySize + entrySize / 1000 + 64;
+            }
+            if (size > MAX_OFFSET)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns true if the open archive and the file still have the size and modification time they had
+     * when the storage opened them.
+     */
+    private boolean unchanged() throws IOException {
+        File file = storage.getFile();
+        return storage.getArchive().length() == storage.getArchiveLength()
+                && file.length() == storage.getArchiveLength()
+                && file.lastModified() == storage.getArchiveModified();
+    }
+
+    /**
+     * Writes all the entries of the storage to the stream as a zip archive. Stream is not closed.
+     * @return number of entries copied without recompression.
+     * @throws IOException thrown also if the written archive would need ZIP64 extensions. The stream then contains
+     *                     an incomplete archive and should be discarded.
+     */
+    public int write(OutputStream out) throws IOException {
+        if (!canWrite())
+            throw new IllegalStateException("Archive cannot be written incrementally");
+        CountingOutputStream counting = new CountingOutputStream(out);
+        List<ArchiveEntry> written = new ArrayList<ArchiveEntry>();
+        int copied = 0;
+        RandomAccessFile archive = storage.getArchive();
+        IInputSource input = storage.getInputSource();
+        Iterator<String> names = input.getEntries();
+        while (names.hasNext()) {
+            String name = names.next();
+            ArchiveEntry original = storage.isModified(name) ? null : archiveEntries.get(name);
+            ArchiveEntry entry;
+            if (original != null) {
+                synchronized (archive) {
+                    entry = copyEntry(archive, original, counting);
+                }
+                copied++;
+            } else {
+                entry = compressEntry(name, input, counting);
+            }
+            if (entry == null)
+                continue;
+            written.add(entry);
+            if (written.size() > MAX_ENTRIES)
+                throw new IOException("Archive has too many entries, ZIP64 is not supported");
+            if (counting.count > MAX_OFFSET || entry.size > MAX_OFFSET)
+                throw new IOException("Archive is too large, ZIP64 is not supported");
+        }
+        writeCentralDirectory(written, counting);
+        if (counting.count > MAX_OFFSET)
+            throw new IOException("Archive is too large, ZIP64 is not supported");
+        counting.flush();
+        return copied;
+    }
+
+    private ArchiveEntry copyEntry(RandomAccessFile archive, ArchiveEntry original, CountingOutputStream out) throws IOException {
+        archive.seek(original.offset + 26);
+        int nameLength = readShort(archive);
+        int extraLength = readShort(archive);
+        archive.seek(original.offset + 30 + nameLength + extraLength);
+
+        ArchiveEntry entry = new ArchiveEntry();
+        entry.name = original.name;
+        entry.flags = original.flags & ~FLAG_DATA_DESCRIPTOR;
+        entry.method = original.method;
+        entry.time = original.time;
+        entry.date = original.date;
+        entry.crc = original.crc;
+        entry.compressedSize = original.compressedSize;
+        entry.size = original.size;
+        entry.offset = out.count;
+        writeLocalHeader(entry, out);
+
+        byte[] buffer = new byte[64 * 1024];
+        long remaining = original.compressedSize;
+        while (remaining > 0) {
+            int read = archive.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+            if (read < 0)
+                throw new IOException("Unexpected end of archive");
+            out.write(buffer, 0, read);
+            remaining -= read;
+        }
+        return entry;
+    }
+
+    /**
+     * Deflates the entry straight to the output. Sizes and CRC are not known before the data is written,
+     * so they follow the data in a data descriptor and are repeated in the central directory.
+     */
+    private ArchiveEntry compressEntry(String name, IInputSource input, CountingOutputStream out) throws IOException {
+        InputStream in = input.getEntryStream(name);
+        if (in == null)
+            return null;
+        ArchiveEntry entry = new ArchiveEntry();
+        entry.name = name.getBytes(UTF_8);
+        entry.flags = FLAG_UTF8 | FLAG_DATA_DESCRIPTOR;
+        entry.method = DEFLATED;
+        int[] dosTime = dosTime(System.currentTimeMillis());
+        entry.time = dosTime[0];
+        entry.date = dosTime[1];
+        entry.offset = out.count;
+        writeLocalHeader(entry, out);
+
+        CRC32 crc = new CRC32();
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        long dataStart = out.count;
+        try {
+            DeflaterOutputStream deflating = new DeflaterOutputStream(out, deflater);
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                crc.update(buffer, 0, read);
+                deflating.write(buffer, 0, read);
+                entry.size += read;
+            }
+            deflating.finish();
+        } finally {
+            deflater.end();
+            Utils.closeQuietly(in);
+        }
+        entry.crc = crc.getValue();
+        entry.compressedSize = out.count - dataStart;
+
+        writeInt(out, DATA_DESCRIPTOR);
+        writeInt(out, entry.crc);
+        writeInt(out, entry.compressedSize);
+        writeInt(out, entry.size);
+        return entry;
+    }
+
+    private static void writeLocalHeader(ArchiveEntry entry, OutputStream out) throws IOException {
+        writeInt(out, LOCAL_HEADER);
+        writeShort(out, 20);
+        writeShort(out, entry.flags);
+        writeShort(out, entry.method);
+        writeShort(out, entry.time);
+        writeShort(out, entry.date);
+        writeInt(out, entry.crc);
+        writeInt(out, entry.compressedSize);
+        writeInt(out, entry.size);
+        writeShort(out, entry.name.length);
+        writeShort(out, 0);
+        out.write(entry.name);
+    }
+
+    private static void writeCentralDirectory(List<ArchiveEntry> entries, CountingOutputStream out) throws IOException {
+        long start = out.count;
+        for (ArchiveEntry entry : entries) {
+            writeInt(out, CENTRAL_HEADER);
+            writeShort(out, 20);
+            writeShort(out, 20);
+            writeShort(out, entry.flags);
+            writeShort(out, entry.method);
+            writeShort(out, entry.time);
+            writeShort(out, entry.date);
+            writeInt(out, entry.crc);
+            writeInt(out, entry.compressedSize);
+            writeInt(out, entry.size);
+            writeShort(out, entry.name.length);
+            writeShort(out, 0);
+            writeShort(out, 0);
+            writeShort(out, 0);
+            writeShort(out, 0);
+            writeInt(out, 0);
+            writeInt(out, entry.offset);
+            out.write(entry.name);
+        }
+        long size = out.count - start;
+        writeInt(out, END_OF_CENTRAL_DIRECTORY);
+        writeShort(out, 0);
+        writeShort(out, 0);
+        writeShort(out, entries.size());
+        writeShort(out, entries.size());
+        writeInt(out, size);
+        writeInt(out, start);
+        writeShort(out, 0);
+    }
+
+    /**
+     * Returns entries of the archive by name or null if the archive cannot be copied incrementally.
+     */
+    private static Map<String, ArchiveEntry> readCentralDirectory(RandomAccessFile file) throws IOException {
+        long endOffset = findEndOfCentralDirectory(file);
+        if (endOffset < 0)
+            return null;
+        file.seek(endOffset + 10);
+        int count = readShort(file);
+        long size = readInt(file);
+        long offset = readInt(file);
+        if (count == 0xffff || size == 0xffffffffL || offset == 0xffffffffL)
+            return null;
+
+        Map<String, ArchiveEntry> entries = new HashMap<String, ArchiveEntry>();
+        file.seek(offset);
+        for (int i = 0; i < count; i++) {
+            if (readInt(file) != CENTRAL_HEADER)
+                throw new IOException("Corrupt central directory");
+            file.skipBytes(4);
+            ArchiveEntry entry = new ArchiveEntry();
+            entry.flags = readShort(file);
+            entry.method = readShort(file);
+            entry.time = readShort(file);
+            entry.date = readShort(file);
+            entry.crc = readInt(file);
+            entry.compressedSize = readInt(file);
+            entry.size = readInt(file);
+            int nameLength = readShort(file);
+            int extraLength = readShort(file);
+            int commentLength = readShort(file);
+            file.skipBytes(8);
+            entry.offset = readInt(file);
+            entry.name = new byte[nameLength];
+            file.readFully(entry.name);
+            file.skipBytes(extraLength + commentLength);
+            if ((entry.flags & 0x0001) != 0 || (entry.method != STORED && entry.method != DEFLATED)
+                    || entry.compressedSize == 0xffffffffL || entry.size == 0xffffffffL || entry.offset == 0xffffffffL)
+                return null;
+            entries.put(new String(entry.name, UTF_8), entry);
+        }
+        return entries;
+    }
+
+    private static long findEndOfCentralDirectory(RandomAccessFile file) throws IOException {
+        long length = file.length();
+        long min = Math.max(0, length - 22 - 0xffff);
+        for (long offset = length - 22; offset >= min; offset--) {
+            file.seek(offset);
+            if (readInt(file) == END_OF_CENTRAL_DIRECTORY)
+                return offset;
+        }
+        return -1;
+    }
+
+    private static int readShort(RandomAccessFile file) throws IOException {
+        int b0 = file.read(), b1 = file.read();
+        if ((b0 | b1) < 0)
+            throw new IOException("Unexpected end of archive");
+        return b0 | (b1 << 8);
+    }
+
+    private static long readInt(RandomAccessFile file) throws IOException {
+        return readShort(file) | ((long) readShort(file) << 16);
+    }
+
+    private static void writeShort(OutputStream out, int value) throws IOException {
+        out.write(value & 0xff);
+        out.write((value >>> 8) & 0xff);
+    }
+
+    private static void writeInt(OutputStream out, long value) throws IOException {
+        writeShort(out, (int) (value & 0xffff));
+        writeShort(out, (int) ((value >>> 16) & 0xffff));
+    }
+
+    private static int[] dosTime(long millis) {
+        Calendar c = Calendar.getInstance();
+        c.setTimeInMillis(millis);
+        int time = (c.get(Calendar.HOUR_OF_DAY) << 11) | (c.get(Calendar.MINUTE) << 5) | (c.get(Calendar.SECOND) >> 1);
+        int date = ((c.get(Calendar.YEAR) - 1980) << 9) | ((c.get(Calendar.MONTH) + 1) << 5) | c.get(Calendar.DAY_OF_MONTH);
+        return new int[]{time, date};
+    }
+
+    private static class CountingOutputStream extends OutputStream {
+        private final OutputStream out;
+        private long count;
+
+        CountingOutputStream(OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+    }
+}
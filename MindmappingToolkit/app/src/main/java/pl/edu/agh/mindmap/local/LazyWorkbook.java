@@ -0,0 +1,91 @@
+package pl.edu.agh.mindmap.local;
+
+import org.xmind.core.Core;
+import org.xmind.core.CoreException;
+import org.xmind.core.IWorkbook;
+import org.xmind.core.io.IStorage;
+import pl.edu.agh.mindmap.Utils;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Workbook whose sheet metadata is read when it is opened and whose content is parsed, as a whole, when it is
+ * first needed. Opening reads only the sheet elements of content.xml, without building topic trees, so workbooks
+ * which are only listed or never shown cost almost nothing. Sheets are not materialized one by one: XMind builds all
+ * the sheets of a workbook from a single document, so getWorkbook() parses the whole content.xml. Only attachments
+ * and revisions are read on demand later, see ZipFileStorage. The archive stays open until close() is called.
+ */
+public class LazyWorkbook implements Closeable {
+    private final ZipFileStorage storage;
+    private final List<SheetInfo> sheets;
+    private IWorkbook workbook;
+
+    private LazyWorkbook(ZipFileStorage storage, List<SheetInfo> sheets) {
+        this.storage = storage;
+        this.sheets = Collections.unmodifiableList(sheets);
+    }
+
+    /**
+     * Opens the archive and reads metadata of its sheets.
+     */
+    public static LazyWorkbook open(File file) throws IOException {
+        ZipFileStorage storage = new ZipFileStorage(file);
+        InputStream contentXml = null;
+        try {
+            contentXml = storage.getInputSource().getEntryStream(SheetInfoReader.CONTENT_XML);
+            if (contentXml == null)
+                throw new IOException("No " + SheetInfoReader.CONTENT_XML + " in " + file);
+            return new LazyWorkbook(storage, SheetInfoReader.read(contentXml));
+        } catch (IOException e) {
+            Utils.closeQuietly(storage);
+            throw e;
+        } finally {
+            Utils.closeQuietly(contentXml);
+        }
+    }
+
+    public File getFile() {
+        return storage.getFile();
+    }
+
+    /**
+     * Returns metadata of the sheets in order of the workbook. Does not parse the workbook.
+     */
+    public List<SheetInfo> getSheets() {
+        return sheets;
+    }
+
+    public synchronized boolean isLoaded() {
+        return workbook != null;
+    }
+
+    /**
+     * Returns the workbook, parsing all of its sheets on the first call. Should not be called on the UI thread
+     * unless isLoaded() returns true.
+     */
+    public synchronized IWorkbook getWorkbook() throws IOException, CoreException {
+        if (workbook == null)
+            workbook = Core.getWorkbookBuilder().loadFromStorage(storage);
+        return workbook;
+    }
+
+    /**
+     * Closes the archive, and the archive the workbook was switched to after a save, if any. Should be called
+     * when the workbook is discarded, its attachments and revisions cannot be read afterwards.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            IStorage current = workbook == null ? null : workbook.getTempStorage();
+            if (current instanceof ZipFileStorage && current != storage)
+                ((ZipFileStorage) current).close();
+        } finally {
+            storage.close();
+        }
+    }
+}
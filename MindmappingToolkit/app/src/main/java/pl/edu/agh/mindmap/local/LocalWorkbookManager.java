@@ -1,9 +1,6 @@
 package pl.edu.agh.mindmap.local;
 
-import java.io.BufferedInputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 
 import org.xmind.core.Core;
@@ -14,11 +11,14 @@ import org.xmind.core.IRevisionRepository;
 import org.xmind.core.ISheet;
 import org.xmind.core.IWorkbook;
 import org.xmind.core.io.ByteArrayStorage;
+import org.xmind.core.io.IStorage;
 
 import android.os.AsyncTask;
+import android.os.Build;
 import android.util.Log;
 import pl.edu.agh.mindmap.ResultListener;
 import pl.edu.agh.mindmap.Utils;
+import pl.edu.agh.mindmap.merge.MergeUtils;
 
 
 public class LocalWorkbookManager {
@@ -34,13 +34,55 @@ public class LocalWorkbookManager {
         new WorkbookLoader(file, resultListener).execute();
     }
 
+    /**
+     * Opens workbook without parsing it: only metadata of its sheets is read. The whole workbook is parsed later
+     * by loadWorkbook(LazyWorkbook, ...) or LazyWorkbook.getWorkbook().
+     */
+    public static void openWorkbook(File file, ResultListener<LazyWorkbook, Exception> resultListener) {
+        Utils.checkNotNull(file, resultListener);
+        new WorkbookOpener(file, resultListener).execute();
+    }
+
+    /**
+     * Parses opened workbook in background. If it was already parsed, the listener gets it without parsing again.
+     */
+    public static void loadWorkbook(LazyWorkbook lazyWorkbook, ResultListener<IWorkbook, Exception> resultListener) {
+        Utils.checkNotNull(lazyWorkbook, resultListener);
+        new WorkbookLoader(lazyWorkbook, resultListener).execute();
+    }
+
+    /**
+     * Closes the archive a workbook loaded by this manager reads its attachments and revisions from.
+     * Should be called when the workbook is discarded. Does nothing for other workbooks.
+     */
+    public static void closeWorkbook(IWorkbook workbook) {
+        if (workbook.getTempStorage() instanceof ZipFileStorage)
+            Utils.closeQuietly((ZipFileStorage) workbook.getTempStorage());
+    }
+
+    /**
+     * Forces the entries of the directory to the storage device. Directories cannot be opened before Lollipop,
+     * so older devices rely on the file system committing the rename.
+     */
+    private static void syncDirectory(File directory) throws IOException {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP)
+            DirectorySync.sync(directory);
+    }
+
     public static IWorkbook createNewWorkbook() {
         IWorkbook workbook = Core.getWorkbookBuilder().createWorkbook();
         workbook.setTempStorage(new ByteArrayStorage());
         return workbook;
     }
 
-    private static class WorkbookSaver extends AsyncTask<Void, Void, Void> {
+    /**
+     * Saves workbook atomically: the file is either replaced by the completely written workbook or left unchanged.
+     * Workbooks loaded by this manager are saved incrementally. Revisions are added only for sheets which changed
+     * since their latest revision. When a loaded workbook is saved to its own file, it switches to the saved archive
+     * and the previous one is closed.
+     * Number of written bytes is published through ResultListener.publishProgress().
+     */
+    private static class WorkbookSaver extends AsyncTask<Void, Long, Void> {
         public final String TAG = LocalWorkbookManager.TAG + "." + WorkbookSaver.class.getSimpleName();
         private final ResultListener<Void, Exception> resultListener;
         private Exception ex;
@@ -59,9 +101,27 @@ public class LocalWorkbookManager {
                 IRevisionRepository revRep = workbook.getRevisionRepository();
                 for (ISheet sheet : workbook.getSheets()) {
                     IRevisionManager revMan = revRep.getRevisionManager(sheet.getId(), IRevision.SHEET);
-                    revMan.addRevision(sheet);
+                    if (!sameAsLatestRevision(sheet, revMan))
+                        revMan.addRevision(sheet);
+                }
+                AtomicFileOutputStream out = new AtomicFileOutputStream(file) {
+                    @Override
+                    protected void onBytesWritten(long bytesWritten) {
+                        publishProgress(bytesWritten);
+                    }
+
+                    @Override
+                    protected void syncDirectory(File directory) throws IOException {
+                        LocalWorkbookManager.syncDirectory(directory);
+                    }
+                };
+                try {
+                    save(out);
+                    out.commit();
+                } finally {
+                    Utils.closeQuietly(out);
                 }
-                workbook.save(new FileOutputStream(file));
+                reopenStorage();
             } catch (IOException | CoreException e) {
                 ex = e;
                 Log.i(TAG, "Save error", e);
@@ -69,6 +129,60 @@ public class LocalWorkbookManager {
             return null;
         }
 
+        /**
+         * Sheets not modified since their latest revision was made are the same without reading the revision.
+         * Modified sheets are compared with the content of the revision, edits may have been undone.
+         */
+        private static boolean sameAsLatestRevision(ISheet sheet, IRevisionManager revMan) {
+            IRevision revision = revMan.getLatestRevision();
+            if (revision == null)
+                return false;
+            if (sheet.getModifiedTime() <= revision.getTimestamp())
+                return true;
+            ISheet latest = (ISheet) revision.getContent();
+            return latest != null && MergeUtils.identicalSheets(sheet, latest);
+        }
+
+        /**
+         * Replaces the archive of a workbook saved to the file it was loaded from by the saved archive, which
+         * has the same entries, so entries written since loading are released from memory. Keeps the previous
+         * archive if the saved one cannot be opened.
+         */
+        private void reopenStorage() {
+            IStorage storage = workbook.getTempStorage();
+            if (!(storage instanceof ZipFileStorage) || !((ZipFileStorage) storage).getFile().equals(file))
+                return;
+            try {
+                workbook.setTempStorage(new ZipFileStorage(file));
+            } catch (IOException e) {
+                Log.w(TAG, "Cannot open saved file", e);
+                return;
+            }
+            Utils.closeQuietly((ZipFileStorage) storage);
+        }
+
+        /**
+         * Workbooks loaded lazily from an archive are saved incrementally: unchanged entries are copied
+         * from the archive without recompression. Archives changed since loading or too large to be written
+         * without ZIP64 are saved in full.
+         */
+        private void save(AtomicFileOutputStream out) throws IOException, CoreException {
+            if (workbook.getTempStorage() instanceof ZipFileStorage) {
+                IncrementalZipWriter writer = new IncrementalZipWriter((ZipFileStorage) workbook.getTempStorage());
+                workbook.saveTemp();
+                if (writer.canWrite()) {
+                    writer.write(out);
+                    return;
+                }
+            }
+            workbook.save(out);
+        }
+
+        @Override
+        protected void onProgressUpdate(Long... bytesWritten) {
+            resultListener.publishProgress(bytesWritten[0]);
+        }
+
         @Override
         protected void onPostExecute(Void v) {
             if (ex != null)
@@ -78,10 +192,15 @@ public class LocalWorkbookManager {
         }
     }
 
+    /**
+     * Loads workbook lazily: the archive is opened for random access and only content, styles and markers
+     * are parsed. Attachments and revisions are read from the archive when they are needed.
+     */
     private static class WorkbookLoader extends AsyncTask<Void, Void, IWorkbook> {
         private final String TAG = LocalWorkbookManager.TAG + "." + WorkbookLoader.class.getSimpleName();
         private ResultListener<IWorkbook, Exception> resultListener;
         private File file;
+        private LazyWorkbook lazyWorkbook;
         private Exception ex;
 
         public WorkbookLoader(File file, ResultListener<IWorkbook, Exception> resultListener) {
@@ -89,10 +208,33 @@ public class LocalWorkbookManager {
             this.resultListener = resultListener;
         }
 
+        public WorkbookLoader(LazyWorkbook lazyWorkbook, ResultListener<IWorkbook, Exception> resultListener) {
+            this.lazyWorkbook = lazyWorkbook;
+            this.resultListener = resultListener;
+        }
+
         @Override
         protected IWorkbook doInBackground(Void... voids) {
+            if (lazyWorkbook != null)
+                return loadLazyWorkbook();
+            ZipFileStorage storage = null;
+            try {
+                storage = new ZipFileStorage(file);
+                return Core.getWorkbookBuilder().loadFromStorage(storage);
+            } catch (IOException e) {
+                Log.e(TAG, "Error while loading file", e);
+                ex = e;
+            } catch (CoreException e) {
+                Log.e(TAG, "Incorrect XMind file", e);
+                ex = e;
+            }
+            Utils.closeQuietly(storage);
+            return null;
+        }
+
+        private IWorkbook loadLazyWorkbook() {
             try {
-                return Core.getWorkbookBuilder().loadFromStream(new BufferedInputStream(new FileInputStream(file)), new ByteArrayStorage());
+                return lazyWorkbook.getWorkbook();
             } catch (IOException e) {
                 Log.e(TAG, "Error while loading file", e);
                 ex = e;
@@ -112,5 +254,34 @@ public class LocalWorkbookManager {
         }
     }
 
+    private static class WorkbookOpener extends AsyncTask<Void, Void, LazyWorkbook> {
+        private final String TAG = LocalWorkbookManager.TAG + "." + WorkbookOpener.class.getSimpleName();
+        private ResultListener<LazyWorkbook, Exception> resultListener;
+        private File file;
+        private Exception ex;
+
+        public WorkbookOpener(File file, ResultListener<LazyWorkbook, Exception> resultListener) {
+            this.file = file;
+            this.resultListener = resultListener;
+        }
+
+        @Override
+        protected LazyWorkbook doInBackground(Void... voids) {
+            try {
+                return LazyWorkbook.open(file);
+            } catch (IOException e) {
+                Log.e(TAG, "Error while opening file", e);
+                ex = e;
+            }
+            return null;
+        }
 
+        @Override
+        protected void onPostExecute(LazyWorkbook workbook) {
+            if (workbook == null)
+                resultListener.taskFailed(ex);
+            else
+                resultListener.taskDone(workbook);
+        }
+    }
 }
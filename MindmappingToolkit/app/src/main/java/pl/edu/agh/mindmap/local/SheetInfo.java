@@ -0,0 +1,31 @@
+package pl.edu.agh.mindmap.local;
+
+/**
+ * Metadata of a sheet read from an .xmind archive without building the workbook.
+ */
+public class SheetInfo {
+    private final String id;
+    private final String title;
+    private final long modifiedTime;
+
+    SheetInfo(String id, String title, long modifiedTime) {
+        this.id = id;
+        this.title = title;
+        this.modifiedTime = modifiedTime;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getTitle() {
+        return title;
+    }
+
+    /**
+     * Returns modification time of the sheet or 0 if it is not stored in the archive.
+     */
+    public long getModifiedTime() {
+        return modifiedTime;
+    }
+}
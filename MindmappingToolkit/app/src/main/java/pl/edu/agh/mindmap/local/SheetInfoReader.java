@@ -0,0 +1,81 @@
+package pl.edu.agh.mindmap.local;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads sheet metadata from content.xml of an .xmind archive by streaming it, without building a DOM.
+ * Topics are skipped, only attributes and titles of sheets are kept.
+ */
+class SheetInfoReader extends DefaultHandler {
+    static final String CONTENT_XML = "content.xml";
+
+    private final List<SheetInfo> sheets = new ArrayList<SheetInfo>();
+    private int depth;
+    private String sheetId;
+    private long sheetModifiedTime;
+    private StringBuilder sheetTitle;
+    private boolean inSheetTitle;
+
+    static List<SheetInfo> read(InputStream contentXml) throws IOException {
+        SheetInfoReader reader = new SheetInfoReader();
+        try {
+            SAXParserFactory factory = SAXParserFactory.newInstance();
+            factory.setNamespaceAware(true);
+            factory.newSAXParser().parse(contentXml, reader);
+        } catch (ParserConfigurationException e) {
+            throw new IOException("Cannot create XML parser", e);
+        } catch (SAXException e) {
+            throw new IOException("Incorrect " + CONTENT_XML, e);
+        }
+        return reader.sheets;
+    }
+
+    @Override
+    public void startElement(String uri, String localName, String qName, Attributes attributes) {
+        depth++;
+        String name = localName.length() > 0 ? localName : qName;
+        if (depth == 2 && "sheet".equals(name)) {
+            sheetId = attributes.getValue("id");
+            sheetModifiedTime = parseTime(attributes.getValue("timestamp"));
+            sheetTitle = new StringBuilder();
+        } else if (depth == 3 && sheetId != null && "title".equals(name)) {
+            inSheetTitle = true;
+        }
+    }
+
+    @Override
+    public void characters(char[] ch, int start, int length) {
+        if (inSheetTitle)
+            sheetTitle.append(ch, start, length);
+    }
+
+    @Override
+    public void endElement(String uri, String localName, String qName) {
+        if (depth == 3)
+            inSheetTitle = false;
+        else if (depth == 2 && sheetId != null) {
+            sheets.add(new SheetInfo(sheetId, sheetTitle.toString(), sheetModifiedTime));
+            sheetId = null;
+        }
+        depth--;
+    }
+
+    private static long parseTime(String time) {
+        if (time == null)
+            return 0;
+        try {
+            return Long.parseLong(time);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
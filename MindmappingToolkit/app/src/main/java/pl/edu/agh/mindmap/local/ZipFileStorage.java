@@ -0,0 +1,267 @@
+package pl.edu.agh.mindmap.local;
+
+import org.xmind.core.io.ByteArrayStorage;
+import org.xmind.core.io.IInputSource;
+import org.xmind.core.io.IOutputTarget;
+import org.xmind.core.io.IStorage;
+import pl.edu.agh.mindmap.Utils;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Workbook storage backed by an .xmind archive opened for random access. Entries are inflated only when they are read,
+ * so loading a workbook from this storage parses content, styles and markers, but does not read attachments
+ * and revisions until they are needed. Written entries are kept in memory and shadow entries of the archive;
+ * the archive itself is never modified. The archive stays open until close() is called, so the workbook can read
+ * its entries; the file may be replaced meanwhile (e.g. by AtomicFileOutputStream), open archive keeps the old content.
+ * The archive is also opened for raw reads of compressed entries by IncrementalZipWriter, both views are opened
+ * from the same file. This class does not depend on Android.
+ */
+public class ZipFileStorage implements IStorage, Closeable {
+    private final File file;
+    private final RandomAccessFile archive;
+    private final long archiveLength;
+    private final long archiveModified;
+    private final ZipFile zipFile;
+    private final ByteArrayStorage overlay = new ByteArrayStorage();
+    private final Set<String> written = new HashSet<String>();
+    private final Set<String> deleted = new HashSet<String>();
+
+    public ZipFileStorage(File file) throws IOException {
+        this.file = file;
+        archive = new RandomAccessFile(file, "r");
+        try {
+            archiveLength = archive.length();
+            archiveModified = file.lastModified();
+            zipFile = new ZipFile(file);
+            if (file.length() != archiveLength || file.lastModified() != archiveModified) {
+                Utils.closeQuietly(zipFile);
+                throw new IOException("Archive " + file + " changed while it was opened");
+            }
+        } catch (IOException e) {
+            Utils.closeQuietly(archive);
+            throw e;
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Returns true if the entry was written or deleted since the archive was opened.
+     */
+    public synchronized boolean isModified(String entryName) {
+        return written.contains(entryName) || deleted.contains(entryName);
+    }
+
+    /**
+     * Returns entry of the archive or null if there is no such entry in the archive.
+     */
+    public ZipEntry getArchiveEntry(String entryName) {
+        return zipFile.getEntry(entryName);
+    }
+
+    ZipFile getZipFile() {
+        return zipFile;
+    }
+
+    /**
+     * Returns the archive opened for raw reads. Reads have to be synchronized on the returned file.
+     */
+    RandomAccessFile getArchive() {
+        return archive;
+    }
+
+    long getArchiveLength() {
+        return archiveLength;
+    }
+
+    long getArchiveModified() {
+        return archiveModified;
+    }
+
+    private synchronized boolean exists(String entryName) {
+        if (written.contains(entryName))
+            return true;
+        return !deleted.contains(entryName) && zipFile.getEntry(entryName) != null;
+    }
+
+    private synchronized Set<String> entryNames() {
+        Set<String> names = new LinkedHashSet<String>();
+        Enumeration<? extends ZipEntry> entries = zipFile.entries();
+        while (entries.hasMoreElements()) {
+            ZipEntry entry = entries.nextElement();
+            if (!entry.isDirectory() && !deleted.contains(entry.getName()))
+                names.add(entry.getName());
+        }
+        names.addAll(written);
+        return names;
+    }
+
+    @Override
+    public IInputSource getInputSource() {
+        final IInputSource overlayInput = overlay.getInputSource();
+        return new IInputSource() {
+            @Override
+            public boolean hasEntry(String entryName) {
+                return exists(entryName);
+            }
+
+            @Override
+            public Iterator<String> getEntries() {
+                return entryNames().iterator();
+            }
+
+            @Override
+            public boolean isEntryAvailable(String entryName) {
+                return exists(entryName);
+            }
+
+            @Override
+            public InputStream getEntryStream(String entryName) {
+                synchronized (ZipFileStorage.this) {
+                    if (written.contains(entryName))
+                        return overlayInput.getEntryStream(entryName);
+                    if (deleted.contains(entryName))
+                        return null;
+                }
+                ZipEntry entry = zipFile.getEntry(entryName);
+                if (entry == null)
+                    return null;
+                try {
+                    return zipFile.getInputStream(entry);
+                } catch (IOException e) {
+                    return null;
+                }
+            }
+
+            @Override
+            public long getEntrySize(String entryName) {
+                synchronized (ZipFileStorage.this) {
+                    if (written.contains(entryName))
+                        return overlayInput.getEntrySize(entryName);
+                }
+                ZipEntry entry = zipFile.getEntry(entryName);
+                return entry == null ? -1 : entry.getSize();
+            }
+
+            @Override
+            public long getEntryTime(String entryName) {
+                synchronized (ZipFileStorage.this) {
+                    if (written.contains(entryName))
+                        return overlayInput.getEntryTime(entryName);
+                }
+                ZipEntry entry = zipFile.getEntry(entryName);
+                return entry == null ? -1 : entry.getTime();
+            }
+        };
+    }
+
+    @Override
+    public IOutputTarget getOutputTarget() {
+        final IOutputTarget overlayOutput = overlay.getOutputTarget();
+        return new IOutputTarget() {
+            @Override
+            public boolean isEntryAvaialble(String entryName) {
+                return true;
+            }
+
+            @Override
+            public OutputStream getEntryStream(String entryName) {
+                synchronized (ZipFileStorage.this) {
+                    written.add(entryName);
+                    deleted.remove(entryName);
+                }
+                return overlayOutput.getEntryStream(entryName);
+            }
+
+            @Override
+            public void setEntryTime(String entryName, long time) {
+                overlayOutput.setEntryTime(entryName, time);
+            }
+        };
+    }
+
+    @Override
+    public String getName() {
+        return file.getName();
+    }
+
+    @Override
+    public String getFullPath() {
+        return file.getAbsolutePath();
+    }
+
+    @Override
+    public synchronized void clear() {
+        overlay.clear();
+        written.clear();
+        deleted.addAll(entryNames());
+    }
+
+    @Override
+    public synchronized void deleteEntry(String entryName) {
+        if (written.remove(entryName))
+            overlay.deleteEntry(entryName);
+        deleted.add(entryName);
+    }
+
+    @Override
+    public synchronized void renameEntry(String entryName, String newName) {
+        if (written.contains(entryName)) {
+            overlay.renameEntry(entryName, newName);
+            written.remove(entryName);
+        } else {
+            copyToOverlay(entryName, newName);
+        }
+        deleted.add(entryName);
+        written.add(newName);
+        deleted.remove(newName);
+    }
+
+    private void copyToOverlay(String entryName, String newName) {
+        ZipEntry entry = zipFile.getEntry(entryName);
+        if (entry == null)
+            return;
+        InputStream in = null;
+        OutputStream out = null;
+        try {
+            in = zipFile.getInputStream(entry);
+            out = overlay.getOutputTarget().getEntryStream(newName);
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1)
+                out.write(buffer, 0, read);
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot rename entry " + entryName, e);
+        } finally {
+            Utils.closeQuietly(in);
+            Utils.closeQuietly(out);
+        }
+    }
+
+    /**
+     * Closes the archive. Entries of the archive cannot be read afterwards.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            zipFile.close();
+        } finally {
+            archive.close();
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package pl.edu.agh.mindmap.merge;
+
+import org.xmind.core.IBoundary;
+import org.xmind.core.IRelationship;
+import org.xmind.core.ISummary;
+
+/**
+ * Receives conflicts as soon as they are found by sheet mergers.
+ * Methods are invoked on the merging thread and merging does not continue until they return,
+ * so a slow listener slows down the merge instead of making conflicts pile up in memory.
+ * The SheetMerger passed to them is fully constructed, but it may still be scanning its sheets.
+ * Conflicts delivered to a listener are not kept by sheet mergers (unless the result workbook is deferred),
+ * so getters of SheetMerger return only conflicts which were not delivered.
+ * In parallel sheet merging, conflicts are delivered after all the sheets are compared, grouped by sheet and kind.
+ */
+public abstract class ConflictListener {
+    public abstract void topicConflictFound(SheetMerger merger, TopicConflict conflict);
+
+    public void relationshipConflictFound(SheetMerger merger, Conflict<IRelationship> conflict) {
+    }
+
+    public void summaryConflictFound(SheetMerger merger, Conflict<ISummary> conflict) {
+    }
+
+    public void boundaryConflictFound(SheetMerger merger, Conflict<IBoundary> conflict) {
+    }
+
+    public void uncopiableSummaryFound(SheetMerger merger, ISummary summary) {
+    }
+
+    public void uncopiableBoundaryFound(SheetMerger merger, IBoundary boundary) {
+    }
+}
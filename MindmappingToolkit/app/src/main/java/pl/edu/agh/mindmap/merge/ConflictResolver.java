@@ -0,0 +1,128 @@
+package pl.edu.agh.mindmap.merge;
+
+import org.xmind.core.ITopic;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Resolves many topic conflicts at once by policies chosen per category of properties.
+ * Only properties which differ in the conflict are changed; properties without a policy are left for manual resolution.
+ * Result workbook is a clone of target, so TARGET leaves the result property unchanged.
+ * WorkbookMerger.resolveConflicts() applies the resolution as one batch of result changes.
+ * <p>
+ * Example: workbookMerger.resolveConflicts(new ConflictResolver().setPolicy(Category.TITLE, Policy.SOURCE)
+ * .setPolicy(Category.NOTES, Policy.NEWEST), sheetMerger.getTopicConflicts());
+ */
+public class ConflictResolver {
+    public enum Policy {
+        /**
+         * Property of the source topic is copied to the result.
+         */
+        SOURCE,
+        /**
+         * Property of the target topic is kept in the result.
+         */
+        TARGET,
+        /**
+         * Property of the topic modified more recently is kept in the result.
+         */
+        NEWEST
+    }
+
+    public enum Category {
+        TITLE(TopicProperty.TITLE_TEXT, TopicProperty.TITLE_WIDTH),
+        HYPERLINK(TopicProperty.HYPERLINK),
+        STRUCTURE(TopicProperty.STRUCTURE_CLASS),
+        POSITION(TopicProperty.POSITION),
+        LABELS(TopicProperty.LABELS),
+        NUMBERING(TopicProperty.NUMBERING),
+        IMAGE(TopicProperty.IMAGE),
+        MARKERS(TopicProperty.MARKER_REFS),
+        STYLE(TopicProperty.STYLE),
+        NOTES(TopicProperty.NOTES);
+
+        private final TopicProperty[] properties;
+
+        Category(TopicProperty... properties) {
+            this.properties = properties;
+        }
+    }
+
+    private final Map<Category, Policy> policies = new EnumMap<Category, Policy>(Category.class);
+
+    /**
+     * Sets policy for a category of properties. Null removes the policy.
+     */
+    public ConflictResolver setPolicy(Category category, Policy policy) {
+        if (policy == null)
+            policies.remove(category);
+        else
+            policies.put(category, policy);
+        return this;
+    }
+
+    public Policy getPolicy(Category category) {
+        return policies.get(category);
+    }
+
+    /**
+     * Applies the policies to all the conflicts in one pass. All the changes of a result topic are made together.
+     * Conflicts without result topic are skipped.
+     * @return number of conflicts whose result topic was changed.
+     */
+    public int resolve(Collection<? extends Conflict<ITopic>> conflicts) {
+        List<Runnable> changes = new ArrayList<Runnable>();
+        collectChanges(conflicts, changes);
+        for (Runnable change : changes)
+            change.run();
+        return changes.size();
+    }
+
+    /**
+     * Adds to the list one change for each result topic which the policies change. The change copies all the chosen
+     * properties of the topic. Properties are chosen when the change is collected.
+     */
+    void collectChanges(Collection<? extends Conflict<ITopic>> conflicts, List<Runnable> changes) {
+        for (Conflict<ITopic> c : conflicts) {
+            if (c.getResult() == null)
+                continue;
+            TopicConflict conflict = c instanceof TopicConflict
+                    ? (TopicConflict) c : new TopicConflict(c.getSource(), c.getTarget(), c.getResult());
+            final List<TopicProperty> fromSource = new ArrayList<TopicProperty>();
+            for (Map.Entry<Category, Policy> entry : policies.entrySet()) {
+                if (!takeSource(conflict, entry.getValue()))
+                    continue;
+                for (TopicProperty property : entry.getKey().properties) {
+                    if (property.isCopyable() && !conflict.haveIdentical(property))
+                        fromSource.add(property);
+                }
+            }
+            if (fromSource.isEmpty())
+                continue;
+            final ITopic source = conflict.getSource();
+            final ITopic result = conflict.getResult();
+            changes.add(new Runnable() {
+                @Override
+                public void run() {
+                    for (TopicProperty property : fromSource)
+                        property.copy(source, result);
+                }
+            });
+        }
+    }
+
+    private static boolean takeSource(TopicConflict conflict, Policy policy) {
+        switch (policy) {
+            case SOURCE:
+                return true;
+            case NEWEST:
+                return conflict.getSource().getModifiedTime() > conflict.getTarget().getModifiedTime();
+            default:
+                return false;
+        }
+    }
+}
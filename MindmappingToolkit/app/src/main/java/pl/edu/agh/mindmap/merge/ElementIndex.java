@@ -0,0 +1,90 @@
+package pl.edu.agh.mindmap.merge;
+
+import org.xmind.core.IBoundary;
+import org.xmind.core.IIdentifiable;
+import org.xmind.core.ISheet;
+import org.xmind.core.ISummary;
+import org.xmind.core.ITopic;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Index of topics, summaries and boundaries of a single sheet by their IDs.
+ * It is built in one pass over the topic tree and has to be kept up to date when elements are added to the sheet.
+ */
+class ElementIndex {
+    private final Map<String, IIdentifiable> elements = new HashMap<String, IIdentifiable>();
+
+    ElementIndex(ISheet sheet) {
+        addSubtree(sheet.getRootTopic());
+    }
+
+    /**
+     * Adds topic, its summaries and boundaries to the index. Children of the topic are not indexed.
+     */
+    void add(ITopic topic) {
+        elements.put(topic.getId(), topic);
+        for (ISummary summary : topic.getSummaries())
+            elements.put(summary.getId(), summary);
+        for (IBoundary boundary : topic.getBoundaries())
+            elements.put(boundary.getId(), boundary);
+    }
+
+    void add(IIdentifiable element) {
+        elements.put(element.getId(), element);
+    }
+
+    /**
+     * Adds topic and all its descendants (including summary topics) to the index.
+     */
+    void addSubtree(ITopic topic) {
+        add(topic);
+        for (ITopic child : topic.getAllChildren())
+            addSubtree(child);
+    }
+
+    void remove(IIdentifiable element) {
+        elements.remove(element.getId());
+    }
+
+    /**
+     * Removes topic, its summaries, boundaries and all its descendants from the index.
+     */
+    void removeSubtree(ITopic topic) {
+        elements.remove(topic.getId());
+        for (ISummary summary : topic.getSummaries())
+            elements.remove(summary.getId());
+        for (IBoundary boundary : topic.getBoundaries())
+            elements.remove(boundary.getId());
+        for (ITopic child : topic.getAllChildren())
+            removeSubtree(child);
+    }
+
+    /**
+     * Updates index entry of the topic with given ID after the topic was added to the sheet, removed from it or moved.
+     * Children of the topic are not updated.
+     */
+    void refreshTopic(ISheet sheet, String id) {
+        ITopic indexed = findTopic(id);
+        if (indexed != null) {
+            for (ISummary summary : indexed.getSummaries())
+                elements.remove(summary.getId());
+            for (IBoundary boundary : indexed.getBoundaries())
+                elements.remove(boundary.getId());
+            elements.remove(id);
+        }
+        Object element = sheet.getOwnedWorkbook().findElement(id, null);
+        if (element instanceof ITopic && sheet.equals(((ITopic) element).getOwnedSheet()))
+            add((ITopic) element);
+    }
+
+    ITopic findTopic(String id) {
+        IIdentifiable element = elements.get(id);
+        return element instanceof ITopic ? (ITopic) element : null;
+    }
+
+    IIdentifiable findElement(String id) {
+        return elements.get(id);
+    }
+}
@@ -0,0 +1,52 @@
+package pl.edu.agh.mindmap.merge;
+
+import org.xmind.core.IIdentifiable;
+
+import java.util.Collection;
+
+/**
+ * Corresponding elements of source, target and result workbook, paired by their IDs.
+ * Pairs are numbered from 0 to size() - 1; missing elements are null.
+ * Unlike MergeUtils.findCorrespondingElements(), no object is created per pair.
+ */
+final class ElementPairing<T extends IIdentifiable> {
+    private final IdInterner ids;
+    private final Object[] sources, targets, results;
+
+    /**
+     * @param result may be null.
+     */
+    ElementPairing(Collection<? extends T> source, Collection<? extends T> target, Collection<? extends T> result) {
+        int capacity = source.size() + target.size() + (result == null ? 0 : result.size());
+        ids = new IdInterner(capacity);
+        sources = new Object[capacity];
+        targets = new Object[capacity];
+        results = new Object[capacity];
+        for (T element : source)
+            sources[ids.intern(element.getId())] = element;
+        for (T element : target)
+            targets[ids.intern(element.getId())] = element;
+        if (result != null)
+            for (T element : result)
+                results[ids.intern(element.getId())] = element;
+    }
+
+    int size() {
+        return ids.size();
+    }
+
+    @SuppressWarnings("unchecked")
+    T getSource(int i) {
+        return (T) sources[i];
+    }
+
+    @SuppressWarnings("unchecked")
+    T getTarget(int i) {
+        return (T) targets[i];
+    }
+
+    @SuppressWarnings("unchecked")
+    T getResult(int i) {
+        return (T) results[i];
+    }
+}
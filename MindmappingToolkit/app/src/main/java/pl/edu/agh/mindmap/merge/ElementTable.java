@@ -0,0 +1,66 @@
+package pl.edu.agh.mindmap.merge;
+
+import org.xmind.core.IIdentifiable;
+
+/**
+ * Corresponding elements of any number of workbook copies, in rows by their IDs.
+ * Rows are numbered from 0 to size() - 1 in order in which the IDs were first added; missing elements are null.
+ */
+final class ElementTable<T extends IIdentifiable> {
+    private final int copies;
+    private final IdInterner ids;
+    private Object[] cells;
+
+    ElementTable(int copies, int expectedSize) {
+        this.copies = copies;
+        ids = new IdInterner(expectedSize);
+        cells = new Object[Math.max(expectedSize, 16) * copies];
+    }
+
+    void add(int copy, T element) {
+        int row = ids.intern(element.getId());
+        if ((row + 1) * copies > cells.length) {
+            Object[] grown = new Object[cells.length * 2];
+            System.arraycopy(cells, 0, grown, 0, cells.length);
+            cells = grown;
+        }
+        cells[row * copies + copy] = element;
+    }
+
+    int size() {
+        return ids.size();
+    }
+
+    int copies() {
+        return copies;
+    }
+
+    @SuppressWarnings("unchecked")
+    T get(int row, int copy) {
+        return (T) cells[row * copies + copy];
+    }
+
+    /**
+     * Returns element of the first copy which has the element in given row.
+     */
+    T first(int row) {
+        for (int copy = 0; copy < copies; copy++) {
+            T element = get(row, copy);
+            if (element != null)
+                return element;
+        }
+        return null;
+    }
+
+    /**
+     * Returns number of copies which have the element in given row.
+     */
+    int count(int row) {
+        int count = 0;
+        for (int copy = 0; copy < copies; copy++) {
+            if (get(row, copy) != null)
+                count++;
+        }
+        return count;
+    }
+}
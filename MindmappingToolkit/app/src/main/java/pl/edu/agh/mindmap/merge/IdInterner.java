@@ -0,0 +1,68 @@
+package pl.edu.agh.mindmap.merge;
+
+/**
+ * Maps string IDs of workbook elements to dense integers 0, 1, 2... in order of first occurrence.
+ * Open addressing hash table with linear probing, it does not allocate per ID.
+ */
+final class IdInterner {
+    private String[] keys;
+    private int[] values;
+    private int size;
+
+    IdInterner(int expectedSize) {
+        int capacity = 16;
+        while (capacity < expectedSize * 2)
+            capacity <<= 1;
+        keys = new String[capacity];
+        values = new int[capacity];
+    }
+
+    /**
+     * Returns number assigned to the ID, assigns the next number if the ID is new.
+     */
+    int intern(String id) {
+        int slot = slot(id);
+        if (keys[slot] != null)
+            return values[slot];
+        keys[slot] = id;
+        values[slot] = size;
+        if (++size * 2 > keys.length)
+            rehash();
+        return size - 1;
+    }
+
+    /**
+     * Returns number assigned to the ID or -1 if the ID was not interned.
+     */
+    int find(String id) {
+        int slot = slot(id);
+        return keys[slot] != null ? values[slot] : -1;
+    }
+
+    int size() {
+        return size;
+    }
+
+    private int slot(String id) {
+        int mask = keys.length - 1;
+        int h = id.hashCode();
+        int slot = (h ^ (h >>> 16)) & mask;
+        while (keys[slot] != null && !keys[slot].equals(id))
+            slot = (slot + 1) & mask;
+        return slot;
+    }
+
+    private void rehash() {
+        String[] oldKeys = keys;
+        int[] oldValues = values;
+        keys = new String[oldKeys.length * 2];
+        values = new int[oldKeys.length * 2];
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != null) {
+                int slot = slot(oldKeys[i]);
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package pl.edu.agh.mindmap.merge;
+
+import org.xmind.core.IWorkbook;
+import org.xmind.core.io.ByteArrayStorage;
+import org.xmind.core.io.DirectoryStorage;
+import org.xmind.core.io.IStorage;
+
+import pl.edu.agh.mindmap.Utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Limits the heap used by temp storages of workbooks in a merge.
+ * Temp storage holds serialized content and attachments (e.g. embedded images) of a workbook.
+ * Storages which fit into the budget are kept in memory, the others are moved to or created as directories
+ * under the cache directory.
+ * <p>
+ * Parsed content of source, target and result workbooks always stays in memory. Peak heap of a merge with budget
+ * is about the sum of: parsed content of the three workbooks, at most heapBudget bytes of storages and merge indexes
+ * of roughly 200 bytes per topic. Without budget, storages of source and target with all their attachments
+ * are kept in memory. PeakHeapMeasurement in the benchmark module checks that storages moved to disk
+ * are not retained in the heap.
+ * <p>
+ * release() moves storages of source and target back to memory and deletes the directories.
+ * It has to be called after the result workbook is saved or discarded.
+ */
+public class MemoryBudget {
+    private final File cacheDir;
+    private final long heapBudget;
+    private long used;
+    private long onDisk;
+    private final List<File> directories = new ArrayList<File>();
+    private final Map<IWorkbook, IStorage> movedWorkbooks = new LinkedHashMap<IWorkbook, IStorage>();
+
+    /**
+     * @param cacheDir directory where storages exceeding the budget are created, e.g. Context.getCacheDir().
+     * @param heapBudget maximal total size of storages kept in memory, in bytes.
+     */
+    public MemoryBudget(File cacheDir, long heapBudget) {
+        if (cacheDir == null || heapBudget < 0)
+            throw new IllegalArgumentException("Invalid memory budget");
+        this.cacheDir = cacheDir;
+        this.heapBudget = heapBudget;
+    }
+
+    public long getHeapBudget() {
+        return heapBudget;
+    }
+
+    /**
+     * Returns number of bytes of the budget used by storages created in memory.
+     */
+    public synchronized long getUsed() {
+        return used;
+    }
+
+    /**
+     * Returns number of bytes of storages created on disk or moved to disk.
+     */
+    public synchronized long getOnDisk() {
+        return onDisk;
+    }
+
+    /**
+     * Creates storage for a workbook whose content and attachments have given size.
+     */
+    public synchronized IStorage createStorage(long size) {
+        if (reserve(size))
+            return new ByteArrayStorage();
+        onDisk += size;
+        return createDirectoryStorage();
+    }
+
+    /**
+     * Moves temp storage of the workbook to disk, if it is kept in memory and does not fit into the budget.
+     * Content of the workbook is not changed and release() moves the storage back to memory.
+     * Returns size of the storage in bytes.
+     */
+    public synchronized long fit(IWorkbook workbook) throws IOException {
+        IStorage storage = workbook.getTempStorage();
+        if (storage == null)
+            return 0;
+        long size = Utils.storageSize(storage);
+        if (!(storage instanceof ByteArrayStorage) || movedWorkbooks.containsKey(workbook) || reserve(size))
+            return size;
+        IStorage dirStorage = createDirectoryStorage();
+        Utils.copyStorage(storage, dirStorage);
+        workbook.setTempStorage(dirStorage);
+        movedWorkbooks.put(workbook, dirStorage);
+        onDisk += size;
+        return size;
+    }
+
+    private boolean reserve(long size) {
+        if (used + size > heapBudget)
+            return false;
+        used += size;
+        return true;
+    }
+
+    private IStorage createDirectoryStorage() {
+        File dir = new File(cacheDir, "merge-" + UUID.randomUUID());
+        directories.add(dir);
+        return new DirectoryStorage(dir);
+    }
+
+    /**
+     * Moves temp storages of workbooks moved to disk by fit() back to memory, unless the workbooks use other storages
+     * since then, and deletes directories of all the storages on disk. Result workbooks using storages created
+     * by createStorage() cannot be saved afterwards.
+     * @throws IOException thrown if a storage could not be moved back to memory. Nothing is deleted then.
+     */
+    public synchronized void release() throws IOException {
+        for (Map.Entry<IWorkbook, IStorage> moved : movedWorkbooks.entrySet()) {
+            IWorkbook workbook = moved.getKey();
+            if (workbook.getTempStorage() == moved.getValue()) {
+                IStorage storage = new ByteArrayStorage();
+                Utils.copyStorage(moved.getValue(), storage);
+                workbook.setTempStorage(storage);
+            }
+        }
+        movedWorkbooks.clear();
+        for (File dir : directories)
+            delete(dir);
+        directories.clear();
+        used = 0;
+        onDisk = 0;
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children)
+                delete(child);
+        }
+        file.delete();
+    }
+}
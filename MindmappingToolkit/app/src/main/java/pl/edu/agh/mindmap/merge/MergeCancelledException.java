@@ -0,0 +1,12 @@
+package pl.edu.agh.mindmap.merge;
+
+/**
+ * Thrown by merging methods when the merge was cancelled through its MergeMonitor.
+ */
+public class MergeCancelledException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    public MergeCancelledException() {
+        super("Merge cancelled");
+    }
+}
@@ -0,0 +1,56 @@
+package pl.edu.agh.mindmap.merge;
+
+/**
+ * State shared by all the sheet mergers of a single workbook merge.
+ */
+class MergeContext {
+    private ConflictListener conflictListener;
+    private StyleIdentityCache styleIdentityCache = StyleIdentityCache.NONE;
+    private MergeMonitor monitor = new MergeMonitor();
+    private final MergeStats stats = new MergeStats();
+
+    ConflictListener getConflictListener() {
+        return conflictListener;
+    }
+
+    MergeContext setConflictListener(ConflictListener conflictListener) {
+        this.conflictListener = conflictListener;
+        return this;
+    }
+
+    StyleIdentityCache getStyleIdentityCache() {
+        return styleIdentityCache;
+    }
+
+    MergeContext setStyleIdentityCache(StyleIdentityCache styleIdentityCache) {
+        this.styleIdentityCache = styleIdentityCache;
+        return this;
+    }
+
+    MergeMonitor getMonitor() {
+        return monitor;
+    }
+
+    MergeContext setMonitor(MergeMonitor monitor) {
+        this.monitor = monitor;
+        return this;
+    }
+
+    MergeStats getStats() {
+        return stats;
+    }
+
+    /**
+     * Returns context of a sheet merger which scans on another thread: without conflict listener,
+     * with its own statistics and caches, and with a monitor cancelled together with the given one.
+     * The merger is moved back to this context by SheetMerger.join().
+     * @param scans monitor of all the concurrent scans, a child of the monitor of this context.
+     */
+    MergeContext forConcurrentScan(MergeMonitor scans) {
+        MergeContext scanContext = new MergeContext();
+        scanContext.styleIdentityCache = styleIdentityCache.newCache();
+        scanContext.monitor = new MergeMonitor(scans);
+        scanContext.stats.setDetailedTiming(stats.isDetailedTiming());
+        return scanContext;
+    }
+}
@@ -0,0 +1,73 @@
+package pl.edu.agh.mindmap.merge;
+
+/**
+ * Follows progress of a merge and allows to cancel it from any thread.
+ * Cancelled merge stops within a few topics by throwing MergeCancelledException from the merging method.
+ * Merger and its result workbook must be discarded after cancellation.
+ */
+public class MergeMonitor {
+    /**
+     * Number of scanned topics between two calls of progress().
+     */
+    public static final int PROGRESS_STEP = 500;
+
+    private final MergeMonitor parent;
+    private volatile boolean cancelled;
+    private long topicsScanned;
+
+    public MergeMonitor() {
+        this(null);
+    }
+
+    /**
+     * Creates monitor of a sheet scanned by another thread. It is cancelled together with its parent,
+     * its scanned topics are added to the parent by join().
+     */
+    MergeMonitor(MergeMonitor parent) {
+        this.parent = parent;
+    }
+
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled || (parent != null && parent.isCancelled());
+    }
+
+    /**
+     * Returns number of topics scanned so far. Counted by the merging thread, read it from progress()
+     * or when the merge is done. In parallel sheet merging, topics are counted after all the sheets are scanned.
+     */
+    public long getTopicsScanned() {
+        return topicsScanned;
+    }
+
+    /**
+     * Invoked on the merging thread after every PROGRESS_STEP scanned topics.
+     */
+    protected void progress(long topicsScanned) {
+    }
+
+    void topicScanned() {
+        if (isCancelled())
+            throw new MergeCancelledException();
+        if (++topicsScanned % PROGRESS_STEP == 0)
+            progress(topicsScanned);
+    }
+
+    void checkCancelled() {
+        if (isCancelled())
+            throw new MergeCancelledException();
+    }
+
+    /**
+     * Adds topics scanned under a child monitor, on the merging thread.
+     */
+    void join(MergeMonitor child) {
+        long previous = topicsScanned;
+        topicsScanned += child.topicsScanned;
+        if (topicsScanned / PROGRESS_STEP != previous / PROGRESS_STEP)
+            progress(topicsScanned);
+    }
+}
@@ -0,0 +1,214 @@
+package pl.edu.agh.mindmap.merge;
+
+import org.xmind.core.Core;
+import org.xmind.core.IImage;
+import org.xmind.core.INumbering;
+import org.xmind.core.IRelationship;
+import org.xmind.core.ISheet;
+import org.xmind.core.ITopic;
+import org.xmind.core.IWorkbook;
+import org.xmind.core.event.CoreEvent;
+import org.xmind.core.event.ICoreEventListener;
+import org.xmind.core.event.ICoreEventRegistration;
+import org.xmind.core.event.ICoreEventSource;
+import org.xmind.core.style.IStyle;
+import org.xmind.core.style.IStyleSheet;
+
+import java.util.*;
+
+/**
+ * Merge of two workbooks which can be repeated after the workbooks change, without merging them from scratch.
+ * Session listens to changes of source, target and result workbooks and remerge() compares again only
+ * the changed topics, relationships of sheets where they changed, sheets if some were added or removed
+ * and styles if any changed. Time of remerge() is proportional to the number of changes, not to the size of workbooks.
+ * Source and target workbooks may be modified between merges, but not during them. Session is not thread-safe.
+ * Session has to be closed when it is not needed anymore, so it stops listening to the workbooks.
+ */
+public class MergeSession {
+    /**
+     * Changes of properties compared by TopicConflict. Image and numbering events come from the image or numbering
+     * of the topic, relationship events from the relationship.
+     */
+    private static final String[] TOPIC_EVENTS = {Core.TitleText, Core.TitleWidth, Core.TopicNotes, Core.Position,
+            Core.Style, Core.MarkerRefAdd, Core.MarkerRefRemove, Core.Labels, Core.TopicHyperlink, Core.StructureClass,
+            Core.ImageSource, Core.ImageWidth, Core.ImageHeight, Core.ImageAlignment,
+            Core.NumberFormat, Core.NumberingPrefix, Core.NumberingSuffix,
+            Core.RelationshipEnd1, Core.RelationshipEnd2,
+            Core.SummaryAdd, Core.SummaryRemove, Core.BoundaryAdd, Core.BoundaryRemove};
+    private static final String[] SUBTREE_EVENTS = {Core.TopicAdd, Core.TopicRemove};
+    private static final String[] RELATIONSHIP_EVENTS = {Core.RelationshipAdd, Core.RelationshipRemove};
+    private static final String[] SHEET_EVENTS = {Core.SheetAdd, Core.SheetRemove};
+    private static final String[] STYLE_EVENTS = {Core.Property, Core.StyleAdd, Core.StyleRemove};
+
+    private final WorkbookMerger merger;
+    private final List<ICoreEventRegistration> registrations = new ArrayList<ICoreEventRegistration>();
+
+    private Map<String, Set<String>> changedTopics = new HashMap<String, Set<String>>();
+    private Map<String, Set<String>> changedResultTopics = new HashMap<String, Set<String>>();
+    private Set<String> changedRelationships = new HashSet<String>();
+    private boolean sheetsChanged;
+    private boolean stylesChanged;
+    private boolean closed;
+    private boolean merging;
+
+    /**
+     * Merges sheets and styles of the workbooks and starts listening to their changes.
+     * @throws WorkbookCloningException thrown if target workbook could not be cloned.
+     */
+    public MergeSession(IWorkbook source, IWorkbook target) throws WorkbookCloningException {
+        merger = new WorkbookMerger(source, target);
+        merger.mergeSheets();
+        merger.mergeStyles();
+        listen(source, changedTopics);
+        listen(target, changedTopics);
+        listen(merger.getResult(), changedResultTopics);
+    }
+
+    private void listen(IWorkbook workbook, final Map<String, Set<String>> topics) {
+        if (!(workbook instanceof ICoreEventSource))
+            throw new IllegalArgumentException("Workbook does not support change events");
+        ICoreEventSource eventSource = (ICoreEventSource) workbook;
+
+        register(eventSource, TOPIC_EVENTS, new ICoreEventListener() {
+            @Override
+            public void handleCoreEvent(CoreEvent event) {
+                if (merging)
+                    return;
+                Object source = event.getSource();
+                if (source instanceof IImage)
+                    source = ((IImage) source).getParent();
+                else if (source instanceof INumbering)
+                    source = ((INumbering) source).getParent();
+                if (source instanceof ITopic)
+                    topicChanged(topics, (ITopic) source);
+                else if (source instanceof IRelationship)
+                    relationshipsChanged(((IRelationship) source).getOwnedSheet());
+            }
+        });
+        register(eventSource, SUBTREE_EVENTS, new ICoreEventListener() {
+            @Override
+            public void handleCoreEvent(CoreEvent event) {
+                if (merging)
+                    return;
+                ITopic parent = (ITopic) event.getSource();
+                if (parent.getOwnedSheet() == null)
+                    return;
+                topicChanged(topics, parent);
+                if (event.getTarget() instanceof ITopic)
+                    subtreeChanged(changedIds(topics, parent.getOwnedSheet()), (ITopic) event.getTarget());
+            }
+        });
+        register(eventSource, RELATIONSHIP_EVENTS, new ICoreEventListener() {
+            @Override
+            public void handleCoreEvent(CoreEvent event) {
+                if (merging)
+                    return;
+                relationshipsChanged((ISheet) event.getSource());
+            }
+        });
+        register(eventSource, SHEET_EVENTS, new ICoreEventListener() {
+            @Override
+            public void handleCoreEvent(CoreEvent event) {
+                if (merging)
+                    return;
+                sheetsChanged = true;
+            }
+        });
+        register(eventSource, STYLE_EVENTS, new ICoreEventListener() {
+            @Override
+            public void handleCoreEvent(CoreEvent event) {
+                if (merging)
+                    return;
+                // styles are added to and removed from the style sheet
+                if (event.getSource() instanceof IStyle || event.getSource() instanceof IStyleSheet)
+                    stylesChanged = true;
+            }
+        });
+    }
+
+    private void register(ICoreEventSource eventSource, String[] eventTypes, ICoreEventListener listener) {
+        for (String type : eventTypes)
+            registrations.add(eventSource.getCoreEventSupport().registerGlobalListener(type, listener));
+    }
+
+    private void topicChanged(Map<String, Set<String>> topics, ITopic topic) {
+        if (topic.getOwnedSheet() != null)
+            changedIds(topics, topic.getOwnedSheet()).add(topic.getId());
+    }
+
+    private static void subtreeChanged(Set<String> ids, ITopic topic) {
+        ids.add(topic.getId());
+        for (ITopic child : topic.getAllChildren())
+            subtreeChanged(ids, child);
+    }
+
+    private static Set<String> changedIds(Map<String, Set<String>> topics, ISheet sheet) {
+        Set<String> ids = topics.get(sheet.getId());
+        if (ids == null) {
+            ids = new HashSet<String>();
+            topics.put(sheet.getId(), ids);
+        }
+        return ids;
+    }
+
+    private void relationshipsChanged(ISheet sheet) {
+        if (sheet != null)
+            changedRelationships.add(sheet.getId());
+    }
+
+    /**
+     * Merges again everything which changed in the workbooks since the previous merge.
+     * Elements which exist only in source are copied to result, except those which were removed from result.
+     * Returns the sheet mergers with updated conflicts.
+     */
+    public List<SheetMerger> remerge() {
+        if (closed)
+            throw new IllegalStateException("Session is closed");
+        Map<String, Set<String>> topics = changedTopics;
+        Map<String, Set<String>> resultTopics = changedResultTopics;
+        Set<String> relationships = changedRelationships;
+        boolean sheets = sheetsChanged;
+        boolean styles = stylesChanged;
+        changedTopics = new HashMap<String, Set<String>>();
+        changedResultTopics = new HashMap<String, Set<String>>();
+        changedRelationships = new HashSet<String>();
+        sheetsChanged = false;
+        stylesChanged = false;
+
+        // changes of the result made by merging are already known to sheet mergers
+        merging = true;
+        try {
+            if (styles)
+                merger.remergeStyles();
+            merger.remergeSheets(topics, resultTopics, relationships, sheets);
+        } finally {
+            merging = false;
+        }
+        return merger.mergeSheets();
+    }
+
+    /**
+     * Returns style conflicts found by the latest merge. See WorkbookMerger.mergeStyles().
+     */
+    public Map<String, List<Conflict<IStyle>>> getStyleConflicts() {
+        return merger.mergeStyles();
+    }
+
+    public List<SheetMerger> getSheetMergers() {
+        return merger.mergeSheets();
+    }
+
+    public IWorkbook getResult() {
+        return merger.getResult();
+    }
+
+    /**
+     * Stops listening to changes of the workbooks. Session cannot merge again after it is closed.
+     */
+    public void close() {
+        for (ICoreEventRegistration registration : registrations)
+            registration.unregister();
+        registrations.clear();
+        closed = true;
+    }
+}
@@ -0,0 +1,188 @@
+package pl.edu.agh.mindmap.merge;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Statistics of a workbook merge: wall time of its phases and counts of the work done.
+ * Counters are plain fields updated by the merging thread, read them when the merge is done.
+ * Comparisons and imports are timed one by one, so they are measured only if detailed timing is enabled.
+ */
+public class MergeStats {
+    public enum Phase {
+        /**
+         * Cloning of the target workbook.
+         */
+        CLONE,
+        /**
+         * mergeSheets(), including comparisons and imports done by it.
+         */
+        SCAN,
+        /**
+         * Comparisons of topic properties. Part of SCAN, summed over threads in parallel sheet merging.
+         * Measured only with detailed timing.
+         */
+        COMPARE,
+        /**
+         * Copying of elements to the result. Part of SCAN, or of result creation if the result is deferred.
+         * Measured only with detailed timing.
+         */
+        IMPORT,
+        /**
+         * mergeStyles().
+         */
+        STYLES,
+        /**
+         * Applying of deferred changes when the result is created.
+         */
+        APPLY
+    }
+
+    private final long[] phaseNanos = new long[Phase.values().length];
+    private long topicsVisited;
+    private long topicsSkippedByTimestamp;
+    private long subtreesSkippedByFingerprint;
+    private long conflictsFound;
+    private long conflictsIdentical;
+    private long elementsImported;
+    private long styleComparisons;
+    private boolean detailedTiming;
+
+    public long getTime(Phase phase, TimeUnit unit) {
+        return unit.convert(phaseNanos[phase.ordinal()], TimeUnit.NANOSECONDS);
+    }
+
+    public boolean isDetailedTiming() {
+        return detailedTiming;
+    }
+
+    /**
+     * Returns number of topics existing in both source and target which were visited by the scan.
+     */
+    public long getTopicsVisited() {
+        return topicsVisited;
+    }
+
+    /**
+     * Returns number of visited topics skipped with their subtrees because they have the same modification time.
+     */
+    public long getTopicsSkippedByTimestamp() {
+        return topicsSkippedByTimestamp;
+    }
+
+    /**
+     * Returns number of visited topics skipped with their subtrees because the subtrees have equal fingerprints.
+     */
+    public long getSubtreesSkippedByFingerprint() {
+        return subtreesSkippedByFingerprint;
+    }
+
+    /**
+     * Returns number of topic conflicts found, i.e. topics which differ in properties.
+     */
+    public long getConflictsFound() {
+        return conflictsFound;
+    }
+
+    /**
+     * Returns number of compared topics discarded as identical.
+     */
+    public long getConflictsIdentical() {
+        return conflictsIdentical;
+    }
+
+    /**
+     * Returns number of elements (subtrees, sheets, summaries, boundaries, relationships, styles) copied to the result.
+     */
+    public long getElementsImported() {
+        return elementsImported;
+    }
+
+    /**
+     * Returns number of style comparisons done by mergeStyles().
+     */
+    public long getStyleComparisons() {
+        return styleComparisons;
+    }
+
+    void setDetailedTiming(boolean detailedTiming) {
+        this.detailedTiming = detailedTiming;
+    }
+
+    void addTime(Phase phase, long nanos) {
+        phaseNanos[phase.ordinal()] += nanos;
+    }
+
+    /**
+     * Returns start time of a single comparison or import, or 0 if detailed timing is disabled.
+     */
+    long startDetail() {
+        return detailedTiming ? System.nanoTime() : 0;
+    }
+
+    void topicVisited() {
+        topicsVisited++;
+    }
+
+    void topicSkippedByTimestamp() {
+        topicsSkippedByTimestamp++;
+    }
+
+    void subtreeSkippedByFingerprint() {
+        subtreesSkippedByFingerprint++;
+    }
+
+    /**
+     * @param start value returned by startDetail() before the comparison.
+     */
+    void topicCompared(boolean identical, long start) {
+        if (identical)
+            conflictsIdentical++;
+        else
+            conflictsFound++;
+        if (detailedTiming)
+            phaseNanos[Phase.COMPARE.ordinal()] += System.nanoTime() - start;
+    }
+
+    /**
+     * @param start value returned by startDetail() before the import.
+     */
+    void elementImported(long start) {
+        elementsImported++;
+        if (detailedTiming)
+            phaseNanos[Phase.IMPORT.ordinal()] += System.nanoTime() - start;
+    }
+
+    void styleCompared() {
+        styleComparisons++;
+    }
+
+    /**
+     * Adds counts and times of a sheet scanned by another thread.
+     */
+    void add(MergeStats other) {
+        for (int i = 0; i < phaseNanos.length; i++)
+            phaseNanos[i] += other.phaseNanos[i];
+        topicsVisited += other.topicsVisited;
+        topicsSkippedByTimestamp += other.topicsSkippedByTimestamp;
+        subtreesSkippedByFingerprint += other.subtreesSkippedByFingerprint;
+        conflictsFound += other.conflictsFound;
+        conflictsIdentical += other.conflictsIdentical;
+        elementsImported += other.elementsImported;
+        styleComparisons += other.styleComparisons;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("MergeStats{");
+        for (Phase phase : Phase.values())
+            sb.append(phase).append('=').append(getTime(phase, TimeUnit.MILLISECONDS)).append("ms, ");
+        return sb.append("topicsVisited=").append(getTopicsVisited())
+                .append(", topicsSkippedByTimestamp=").append(getTopicsSkippedByTimestamp())
+                .append(", subtreesSkippedByFingerprint=").append(getSubtreesSkippedByFingerprint())
+                .append(", conflictsFound=").append(getConflictsFound())
+                .append(", conflictsIdentical=").append(getConflictsIdentical())
+                .append(", elementsImported=").append(getElementsImported())
+                .append(", styleComparisons=").append(getStyleComparisons())
+                .append('}').toString();
+    }
+}
@@ -1,34 +1,77 @@
 package pl.edu.agh.mindmap.merge;
 
 import org.xmind.core.IIdentifiable;
+import org.xmind.core.IRelationship;
 import org.xmind.core.IRevision;
 import org.xmind.core.ISheet;
+import org.xmind.core.ITopic;
+import org.xmind.core.IWorkbook;
+import pl.edu.agh.mindmap.Utils;
 
 import java.util.*;
 
 public class MergeUtils {
 
     public static <T extends IIdentifiable> List<Conflict<T>> findCorrespondingElements(List<T> source, List<T> target, List<T> result) {
-        Map<String, Conflict<T>> triplesMap = new HashMap<String, Conflict<T>>();
-        for (T i : source) {
-            triplesMap.put(i.getId(), new Conflict<T>().setSource(i));
+        ElementPairing<T> pairing = pairElements(source, target, result);
+        List<Conflict<T>> triples = new ArrayList<Conflict<T>>(pairing.size());
+        for (int i = 0; i < pairing.size(); i++)
+            triples.add(new Conflict<T>(pairing.getSource(i), pairing.getTarget(i), pairing.getResult(i)));
+        return triples;
+    }
+
+    /**
+     * Pairs elements of the same IDs without creating a conflict per element.
+     * @param result may be null.
+     */
+    static <T extends IIdentifiable> ElementPairing<T> pairElements(Collection<? extends T> source, Collection<? extends T> target, Collection<? extends T> result) {
+        return new ElementPairing<T>(source, target, result);
+    }
+
+    /**
+     * Puts elements of the same IDs from all the copies into rows of a table, reading each collection once.
+     */
+    static <T extends IIdentifiable> ElementTable<T> tableElements(List<? extends Collection<? extends T>> copies) {
+        int expectedSize = 0;
+        for (Collection<? extends T> copy : copies)
+            expectedSize = Math.max(expectedSize, copy.size());
+        ElementTable<T> table = new ElementTable<T>(copies.size(), expectedSize);
+        for (int i = 0; i < copies.size(); i++) {
+            for (T element : copies.get(i))
+                table.add(i, element);
         }
-        for (T i : target) {
-            Conflict<T> conflict = triplesMap.get(i.getId());
-            if (conflict == null)
-                triplesMap.put(i.getId(), new Conflict<T>().setTarget(i));
-            else
-                conflict.setTarget(i);
+        return table;
+    }
+
+    /**
+     * Returns indexes of the first and the last of the topics enclosed by a summary or boundary, as positioned
+     * in result. Returns null if some of the topics do not exist in result, have different parents there
+     * or are not adjacent.
+     * @param enclosingTopics non-empty list of enclosing topics of a summary or boundary of another workbook.
+     */
+    static int[] enclosedRange(List<ITopic> enclosingTopics, ElementIndex resultIndex) {
+        List<Integer> indexes = new ArrayList<Integer>(enclosingTopics.size());
+        ITopic resultParent = null;
+        for (ITopic encTopic : enclosingTopics) {
+            ITopic resultTopic = resultIndex.findTopic(encTopic.getId());
+            if (resultTopic == null || resultTopic.getParent() == null)
+                return null;
+            if (resultParent == null)
+                resultParent = resultTopic.getParent();
+            else if (!resultParent.equals(resultTopic.getParent()))
+                return null;
+            indexes.add(resultTopic.getIndex());
         }
-        if (result != null)
-            for (T i : result) {
-                Conflict<T> conflict = triplesMap.get(i.getId());
-                if (conflict == null)
-                    triplesMap.put(i.getId(), new Conflict<T>().setResult(i));
-                else
-                    conflict.setResult(i);
-            }
-        return new ArrayList<Conflict<T>>(triplesMap.values());
+
+        Collections.sort(indexes);
+        Iterator<Integer> it = indexes.iterator();
+        int reqIndex = it.next() + 1;
+        while (it.hasNext()) {
+            if (it.next() != reqIndex)
+                return null;
+            reqIndex++;
+        }
+        return new int[]{indexes.get(0), indexes.get(indexes.size() - 1)};
     }
 
     public static List<Conflict<ISheet>> findRevisionPairs(List<IRevision> sourceRevs, List<IRevision> targetRevs) {
@@ -47,4 +90,42 @@ public class MergeUtils {
         }
         return new ArrayList<Conflict<ISheet>>(revPairsMap.values());
     }
+
+    /**
+     * Finds the newest revision of the sheet which exists in both source and target workbook.
+     * Returns content of the revision from source workbook or null if workbooks have no common revision of the sheet.
+     */
+    public static ISheet findCommonAncestor(IWorkbook source, IWorkbook target, String sheetId) {
+        List<IRevision> sourceRevs = source.getRevisionRepository().getRevisionManager(sheetId, IRevision.SHEET).getRevisions();
+        List<IRevision> targetRevs = target.getRevisionRepository().getRevisionManager(sheetId, IRevision.SHEET).getRevisions();
+        ISheet ancestor = null;
+        for (Conflict<ISheet> pair : findRevisionPairs(sourceRevs, targetRevs)) {
+            if (pair.getSource() != null && pair.getTarget() != null
+                    && (ancestor == null || pair.getSource().getModifiedTime() > ancestor.getModifiedTime()))
+                ancestor = pair.getSource();
+        }
+        return ancestor;
+    }
+
+    /**
+     * Returns true if the sheets, e.g. a sheet and its revision, have the same content: title, topic trees and relationships.
+     * Sheets of the same modification time are considered identical without comparing them,
+     * as in findRevisionPairs(). Topic trees with different fingerprints are rejected without comparing them.
+     */
+    public static boolean identicalSheets(ISheet s1, ISheet s2) {
+        if (s1.getModifiedTime() == s2.getModifiedTime())
+            return true;
+        if (!Utils.safeEquals(s1.getTitleText(), s2.getTitleText()))
+            return false;
+        if (SubtreeFingerprints.forSheet(s1).root() != SubtreeFingerprints.forSheet(s2).root()
+                || !TopicComparator.identicalSubtrees(s1.getRootTopic(), s2.getRootTopic(), StyleIdentityCache.NONE))
+            return false;
+        ElementPairing<IRelationship> relationships = pairElements(s1.getRelationships(), s2.getRelationships(), null);
+        for (int i = 0; i < relationships.size(); i++) {
+            IRelationship r1 = relationships.getSource(i), r2 = relationships.getTarget(i);
+            if (r1 == null || r2 == null || !WorkbookElementsComparator.areIdentical(r1, r2))
+                return false;
+        }
+        return true;
+    }
 }
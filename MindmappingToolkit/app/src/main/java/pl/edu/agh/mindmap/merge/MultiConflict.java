@@ -0,0 +1,41 @@
+package pl.edu.agh.mindmap.merge;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Element which differs among copies of a workbook merged by MultiWorkbookMerger.
+ */
+public class MultiConflict<T> {
+    private final List<T> versions;
+    private T result;
+
+    MultiConflict(ElementTable<? extends T> table, int row, T result) {
+        List<T> versions = new ArrayList<T>(table.copies());
+        for (int copy = 0; copy < table.copies(); copy++)
+            versions.add(table.get(row, copy));
+        this.versions = Collections.unmodifiableList(versions);
+        this.result = result;
+    }
+
+    /**
+     * Returns versions of the element, one for each copy in order of the merged workbooks.
+     * Version is null if the copy does not have the element. Do not modify these elements while merging!!!
+     */
+    public List<T> getVersions() {
+        return versions;
+    }
+
+    /**
+     * Returns corresponding element in the merge result workbook. All changes should be applied to this element.
+     */
+    public T getResult() {
+        return result;
+    }
+
+    MultiConflict<T> setResult(T result) {
+        this.result = result;
+        return this;
+    }
+}
@@ -0,0 +1,326 @@
+package pl.edu.agh.mindmap.merge;
+
+import org.xmind.core.IBoundary;
+import org.xmind.core.IIdentifiable;
+import org.xmind.core.IRelationship;
+import org.xmind.core.ISheet;
+import org.xmind.core.ISummary;
+import org.xmind.core.ITopic;
+import org.xmind.core.IWorkbook;
+import pl.edu.agh.mindmap.Utils;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Merges a sheet of the same ID from any number of workbook copies into the result sheet.
+ * Topic tree of each copy is read once into a single table of corresponding topics.
+ * Topics and relationships which exist in some of the copies, but not in result, are copied to result
+ * from the first copy which has them, together with their subtrees. Summaries and boundaries which any
+ * of the copies added to topics existing in result are copied too, unless the topics they enclose are not adjacent
+ * in result. Elements which differ among the copies are returned as conflicts, one for all the copies.
+ */
+public class MultiSheetMerger extends MultiConflict<ISheet> {
+    private final List<MultiConflict<ITopic>> topicConflicts = new ArrayList<MultiConflict<ITopic>>();
+    private final List<MultiConflict<IRelationship>> relationshipConflicts = new ArrayList<MultiConflict<IRelationship>>();
+    private final List<ISummary> uncopiableSummaries = new ArrayList<ISummary>();
+    private final List<IBoundary> uncopiableBoundaries = new ArrayList<IBoundary>();
+    private final ElementIndex resultIndex;
+
+    MultiSheetMerger(ElementTable<ISheet> sheets, int row, ISheet result) {
+        super(sheets, row, result);
+        resultIndex = new ElementIndex(result);
+        if (!sameModifiedTimes())
+            mergeTopics();
+        mergeRelationships();
+    }
+
+    private boolean sameModifiedTimes() {
+        Long modifiedTime = null;
+        for (ISheet sheet : getVersions()) {
+            if (sheet == null)
+                return false;
+            if (modifiedTime == null)
+                modifiedTime = sheet.getModifiedTime();
+            else if (modifiedTime != sheet.getModifiedTime())
+                return false;
+        }
+        return true;
+    }
+
+    private void mergeTopics() {
+        List<ISheet> versions = getVersions();
+        List<List<ITopic>> copies = new ArrayList<List<ITopic>>(versions.size());
+        for (ISheet sheet : versions) {
+            List<ITopic> topics = new ArrayList<ITopic>();
+            if (sheet != null)
+                collectTopics(sheet.getRootTopic(), topics);
+            copies.add(topics);
+        }
+        ElementTable<ITopic> topics = MergeUtils.tableElements(copies);
+
+        // rows of topics of the first copy are in its preorder, followed by rows of topics added by the next copies,
+        // each in preorder of the copy. Parent of a topic in the first copy having it is in the same copy, so its row
+        // precedes the row of the topic and parents are imported before their children.
+        for (int row = 0; row < topics.size(); row++) {
+            ITopic first = topics.first(row);
+            ITopic resultTopic = resultIndex.findTopic(first.getId());
+            if (resultTopic == null) {
+                resultTopic = importTopic(first);
+                if (resultTopic == null)
+                    continue;
+            }
+            if (topics.count(row) > 1 && !allIdentical(topics, row))
+                topicConflicts.add(new MultiConflict<ITopic>(topics, row, resultTopic));
+        }
+
+        // enclosed topics may be imported from any copy, so summaries and boundaries are imported after all topics
+        for (int row = 0; row < topics.size(); row++) {
+            if (resultIndex.findTopic(topics.first(row).getId()) == null)
+                continue;
+            for (int copy = 0; copy < topics.copies(); copy++) {
+                ITopic topic = topics.get(row, copy);
+                if (topic != null)
+                    importSummariesAndBoundaries(topic);
+            }
+        }
+        // another copy may have enclosed topics which are adjacent in result
+        removeCopied(uncopiableSummaries);
+        removeCopied(uncopiableBoundaries);
+    }
+
+    private void removeCopied(List<? extends IIdentifiable> elements) {
+        Set<String> ids = new HashSet<String>();
+        Iterator<? extends IIdentifiable> it = elements.iterator();
+        while (it.hasNext()) {
+            String id = it.next().getId();
+            if (resultIndex.findElement(id) != null || !ids.add(id))
+                it.remove();
+        }
+    }
+
+    /**
+     * Copies summaries and boundaries of the topic which do not exist in result yet, as SheetMerger does.
+     * Summary topics are copied with their subtrees, without descendants which already exist in result.
+     */
+    private void importSummariesAndBoundaries(ITopic topic) {
+        IWorkbook resultWorkbook = getResult().getOwnedWorkbook();
+        for (ISummary summary : topic.getSummaries()) {
+            if (resultIndex.findElement(summary.getId()) != null || summary.getTopic() == null
+                    || resultIndex.findTopic(summary.getTopic().getId()) != null)
+                continue;
+            int[] range = enclosedRange(summary.getEnclosingTopics());
+            if (range == null) {
+                if (!summary.getEnclosingTopics().isEmpty())
+                    uncopiableSummaries.add(summary);
+                continue;
+            }
+            ITopic resultParent = resultIndex.findTopic(summary.getEnclosingTopics().get(0).getId()).getParent();
+            ISummary impSummary = (ISummary) resultWorkbook.importElement(summary);
+            impSummary.setStartIndex(range[0]);
+            impSummary.setEndIndex(range[1]);
+            resultParent.addSummary(impSummary);
+            resultIndex.add(impSummary);
+            ITopic impSumTopic = (ITopic) resultWorkbook.importElement(summary.getTopic());
+            resultParent.add(impSumTopic, ITopic.SUMMARY);
+            indexImported(topic.getOwnedWorkbook(), impSumTopic);
+        }
+        for (IBoundary boundary : topic.getBoundaries()) {
+            if (resultIndex.findElement(boundary.getId()) != null)
+                continue;
+            int[] range = enclosedRange(boundary.getEnclosingTopics());
+            if (range == null) {
+                if (!boundary.getEnclosingTopics().isEmpty())
+                    uncopiableBoundaries.add(boundary);
+                continue;
+            }
+            ITopic resultParent = resultIndex.findTopic(boundary.getEnclosingTopics().get(0).getId()).getParent();
+            IBoundary impBoundary = (IBoundary) resultWorkbook.importElement(boundary);
+            impBoundary.setStartIndex(range[0]);
+            impBoundary.setEndIndex(range[1]);
+            resultParent.addBoundary(impBoundary);
+            resultIndex.add(impBoundary);
+        }
+    }
+
+    private static void collectTopics(ITopic topic, List<ITopic> topics) {
+        topics.add(topic);
+        for (ITopic child : topic.getAllChildren())
+            collectTopics(child, topics);
+    }
+
+    /**
+     * Copies topic with its subtree under its parent in result. Descendants which already exist in result are
+     * removed from the copy, summaries and boundaries of topics which lost children are imported again,
+     * as in SheetMerger. Returns the copy or null if the topic cannot be copied.
+     */
+    private ITopic importTopic(ITopic topic) {
+        ITopic parent = topic.getParent();
+        if (parent == null || Utils.safeEquals(topic.getType(), ITopic.SUMMARY))
+            return null;
+        ITopic resultParent = resultIndex.findTopic(parent.getId());
+        if (resultParent == null)
+            return null;
+        ITopic imported = (ITopic) getResult().getOwnedWorkbook().importElement(topic);
+        resultParent.add(imported, topic.getType());
+        indexImported(topic.getOwnedWorkbook(), imported);
+        return imported;
+    }
+
+    /**
+     * Indexes imported topic with its subtree and removes descendants which already exist in result.
+     * @param original workbook the topic was imported from.
+     */
+    private void indexImported(IWorkbook original, ITopic imported) {
+        Set<ITopic> changedParents = new LinkedHashSet<ITopic>();
+        indexImported(imported, changedParents);
+        for (ITopic changedParent : changedParents) {
+            // summary topics of a parent reimported before are replaced by new copies
+            if (resultIndex.findTopic(changedParent.getId()) == changedParent)
+                reimportSummariesAndBoundaries((ITopic) original.findElement(changedParent.getId(), null), changedParent);
+        }
+    }
+
+    private void indexImported(ITopic imported, Set<ITopic> changedParents) {
+        resultIndex.add(imported);
+        for (ITopic child : new ArrayList<ITopic>(imported.getAllChildren())) {
+            if (resultIndex.findTopic(child.getId()) != null) {
+                imported.remove(child);
+                changedParents.add(imported);
+            } else {
+                indexImported(child, changedParents);
+            }
+        }
+    }
+
+    /**
+     * Replaces summaries, summary topics and boundaries of the imported topic by copies of those of the original
+     * topic whose enclosing topics are still adjacent in result. Summary topics are copied with their subtrees,
+     * without descendants which already exist in result.
+     */
+    private void reimportSummariesAndBoundaries(ITopic original, ITopic imported) {
+        for (ISummary summary : new ArrayList<ISummary>(imported.getSummaries())) {
+            imported.removeSummary(summary);
+            resultIndex.remove(summary);
+        }
+        for (IBoundary boundary : new ArrayList<IBoundary>(imported.getBoundaries())) {
+            imported.removeBoundary(boundary);
+            resultIndex.remove(boundary);
+        }
+        for (ITopic summaryTopic : new ArrayList<ITopic>(imported.getChildren(ITopic.SUMMARY))) {
+            imported.remove(summaryTopic);
+            resultIndex.removeSubtree(summaryTopic);
+        }
+
+        IWorkbook resultWorkbook = getResult().getOwnedWorkbook();
+        for (ISummary summary : original.getSummaries()) {
+            int[] range = enclosedRange(summary.getEnclosingTopics());
+            if (range == null || summary.getTopic() == null || resultIndex.findTopic(summary.getTopic().getId()) != null)
+                continue;
+            ISummary impSummary = (ISummary) resultWorkbook.importElement(summary);
+            impSummary.setStartIndex(range[0]);
+            impSummary.setEndIndex(range[1]);
+            imported.addSummary(impSummary);
+            resultIndex.add(impSummary);
+            ITopic impSumTopic = (ITopic) resultWorkbook.importElement(summary.getTopic());
+            imported.add(impSumTopic, ITopic.SUMMARY);
+            indexImported(original.getOwnedWorkbook(), impSumTopic);
+        }
+        for (IBoundary boundary : original.getBoundaries()) {
+            int[] range = enclosedRange(boundary.getEnclosingTopics());
+            if (range == null)
+                continue;
+            IBoundary impBoundary = (IBoundary) resultWorkbook.importElement(boundary);
+            impBoundary.setStartIndex(range[0]);
+            impBoundary.setEndIndex(range[1]);
+            imported.addBoundary(impBoundary);
+            resultIndex.add(impBoundary);
+        }
+    }
+
+    private int[] enclosedRange(List<ITopic> enclosingTopics) {
+        if (enclosingTopics.isEmpty())
+            return null;
+        return MergeUtils.enclosedRange(enclosingTopics, resultIndex);
+    }
+
+    private static boolean allIdentical(ElementTable<ITopic> topics, int row) {
+        ITopic first = topics.first(row);
+        for (int copy = 0; copy < topics.copies(); copy++) {
+            ITopic topic = topics.get(row, copy);
+            if (topic == null || topic == first || topic.getModifiedTime() == first.getModifiedTime())
+                continue;
+            if (!new TopicConflict(first, topic, null).areEntirelyIdentical())
+                return false;
+        }
+        return true;
+    }
+
+    private void mergeRelationships() {
+        List<Collection<IRelationship>> copies = new ArrayList<Collection<IRelationship>>();
+        for (ISheet sheet : getVersions())
+            copies.add(sheet == null ? Collections.<IRelationship>emptySet() : sheet.getRelationships());
+        ElementTable<IRelationship> relationships = MergeUtils.tableElements(copies);
+
+        IWorkbook resultWorkbook = getResult().getOwnedWorkbook();
+        for (IRelationship relationship : getResult().getRelationships())
+            resultIndex.add(relationship);
+        for (int row = 0; row < relationships.size(); row++) {
+            IRelationship first = relationships.first(row);
+            IRelationship resultRel = (IRelationship) resultIndex.findElement(first.getId());
+            if (resultRel == null) {
+                resultRel = (IRelationship) resultWorkbook.importElement(first);
+                getResult().addRelationship(resultRel);
+                resultIndex.add(resultRel);
+            }
+            if (relationships.count(row) > 1 && !allIdenticalRelationships(relationships, row))
+                relationshipConflicts.add(new MultiConflict<IRelationship>(relationships, row, resultRel));
+        }
+    }
+
+    private static boolean allIdenticalRelationships(ElementTable<IRelationship> relationships, int row) {
+        IRelationship first = relationships.first(row);
+        for (int copy = 0; copy < relationships.copies(); copy++) {
+            IRelationship relationship = relationships.get(row, copy);
+            if (relationship != null && relationship != first && !WorkbookElementsComparator.areIdentical(first, relationship))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns topic conflicts. Returned list is read-only.
+     */
+    public List<MultiConflict<ITopic>> getTopicConflicts() {
+        return Collections.unmodifiableList(topicConflicts);
+    }
+
+    /**
+     * Returns relationship conflicts. Returned list is read-only.
+     */
+    public List<MultiConflict<IRelationship>> getRelationshipConflicts() {
+        return Collections.unmodifiableList(relationshipConflicts);
+    }
+
+    /**
+     * Returns summaries of the copies which could not be copied to result, because the topics they enclose
+     * are not adjacent there. Returned list is read-only.
+     */
+    public List<ISummary> getUncopiableSummaries() {
+        return Collections.unmodifiableList(uncopiableSummaries);
+    }
+
+    /**
+     * Returns boundaries of the copies which could not be copied to result, because the topics they enclose
+     * are not adjacent there. Returned list is read-only.
+     */
+    public List<IBoundary> getUncopiableBoundaries() {
+        return Collections.unmodifiableList(uncopiableBoundaries);
+    }
+}
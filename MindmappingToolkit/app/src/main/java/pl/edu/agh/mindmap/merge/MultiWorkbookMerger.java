@@ -0,0 +1,141 @@
+package pl.edu.agh.mindmap.merge;
+
+import org.xmind.core.CoreException;
+import org.xmind.core.ISheet;
+import org.xmind.core.IWorkbook;
+import org.xmind.core.style.IStyle;
+import org.xmind.core.style.IStyleSheet;
+import pl.edu.agh.mindmap.Utils;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Helper class for merging of many copies of a workbook into one in a single pass, e.g. copies from several devices.
+ * Copies remain unchanged and should not be modified during merge! The result of the merge is initially a clone
+ * of the first copy. Elements which exist in some of the copies but not in result are copied to result from
+ * the first copy which has them. Elements which differ among the copies are returned as conflicts,
+ * one conflict with versions from all the copies. Each copy is read once, unlike in a chain of pairwise merges.
+ * Summaries and boundaries are merged only as parts of copied topics.
+ */
+public class MultiWorkbookMerger {
+    private static final String CLONING_FAILED = "Cloning first workbook failed";
+
+    private final List<IWorkbook> copies;
+    private final IWorkbook result;
+    private List<MultiSheetMerger> sheetMergers;
+    private Map<String, List<MultiConflict<IStyle>>> styleConflicts;
+
+    /**
+     * @param copies at least two copies of a workbook. The first one is cloned as the result.
+     * @throws WorkbookCloningException thrown if the first workbook could not be cloned.
+     */
+    public MultiWorkbookMerger(List<IWorkbook> copies) throws WorkbookCloningException {
+        if (copies == null || copies.size() < 2 || copies.contains(null))
+            throw new IllegalArgumentException("At least two workbooks have to be passed");
+        this.copies = Collections.unmodifiableList(new ArrayList<IWorkbook>(copies));
+        try {
+            result = Utils.cloneWorkbook(copies.get(0));
+        } catch (IOException e) {
+            throw new WorkbookCloningException(CLONING_FAILED, e);
+        } catch (CoreException e) {
+            throw new WorkbookCloningException(CLONING_FAILED, e);
+        }
+    }
+
+    public List<IWorkbook> getCopies() {
+        return copies;
+    }
+
+    public IWorkbook getResult() {
+        return result;
+    }
+
+    /**
+     * Copies sheets which do not exist in result from the first copy which has them.
+     * Returns a list of sheet mergers, one for each sheet which exists in at least two copies.
+     * If sheets were already merged, returns the same sheet mergers.
+     */
+    public List<MultiSheetMerger> mergeSheets() {
+        if (sheetMergers != null)
+            return sheetMergers;
+        List<List<ISheet>> sheetsOfCopies = new ArrayList<List<ISheet>>(copies.size());
+        for (IWorkbook copy : copies)
+            sheetsOfCopies.add(copy.getSheets());
+        ElementTable<ISheet> sheets = MergeUtils.tableElements(sheetsOfCopies);
+
+        List<MultiSheetMerger> sheetMergers = new ArrayList<MultiSheetMerger>();
+        for (int row = 0; row < sheets.size(); row++) {
+            ISheet resultSheet = findSheet(result, sheets.first(row).getId());
+            if (resultSheet == null) {
+                resultSheet = (ISheet) result.importElement(sheets.first(row));
+                result.addSheet(resultSheet);
+            }
+            if (sheets.count(row) > 1)
+                sheetMergers.add(new MultiSheetMerger(sheets, row, resultSheet));
+        }
+        this.sheetMergers = sheetMergers;
+        return sheetMergers;
+    }
+
+    private static ISheet findSheet(IWorkbook workbook, String id) {
+        for (ISheet sheet : workbook.getSheets()) {
+            if (sheet.getId().equals(id))
+                return sheet;
+        }
+        return null;
+    }
+
+    /**
+     * Copies styles which do not exist in result from the first copy which has them.
+     * Returns a map containing 3 lists of style conflicts, stored under IStyleSheet.NORMAL_STYLES,
+     * IStyleSheet.AUTOMATIC_STYLES and IStyleSheet.MASTER_STYLES, see WorkbookMerger.mergeStyles().
+     * If styles were already merged, returns the same conflicts.
+     */
+    public Map<String, List<MultiConflict<IStyle>>> mergeStyles() {
+        if (styleConflicts != null)
+            return styleConflicts;
+        Map<String, List<MultiConflict<IStyle>>> styleConflictsMap = new HashMap<String, List<MultiConflict<IStyle>>>();
+        IStyleSheet resultStyles = result.getStyleSheet();
+
+        for (String styleGroup : Arrays.asList(
+                IStyleSheet.NORMAL_STYLES,
+                IStyleSheet.AUTOMATIC_STYLES,
+                IStyleSheet.MASTER_STYLES)) {
+
+            List<Set<IStyle>> stylesOfCopies = new ArrayList<Set<IStyle>>(copies.size());
+            for (IWorkbook copy : copies)
+                stylesOfCopies.add(copy.getStyleSheet().getStyles(styleGroup));
+            ElementTable<IStyle> styles = MergeUtils.tableElements(stylesOfCopies);
+
+            List<MultiConflict<IStyle>> conflicts = new LinkedList<MultiConflict<IStyle>>();
+            for (int row = 0; row < styles.size(); row++) {
+                IStyle first = styles.first(row);
+                IStyle resultStyle = resultStyles.findStyle(first.getId());
+                if (resultStyle == null) {
+                    resultStyle = resultStyles.importStyle(first);
+                    resultStyles.addStyle(resultStyle, styleGroup);
+                }
+                if (styles.count(row) > 1 && !allIdentical(styles, row))
+                    conflicts.add(new MultiConflict<IStyle>(styles, row, resultStyle));
+            }
+            styleConflictsMap.put(styleGroup, conflicts);
+        }
+        styleConflicts = styleConflictsMap;
+        return styleConflictsMap;
+    }
+
+    /**
+     * Compares the styles of a row by their signatures. Signature of each style is computed once.
+     */
+    private static boolean allIdentical(ElementTable<IStyle> styles, int row) {
+        IStyle first = styles.first(row);
+        StyleSignature signature = StyleSignature.of(first);
+        for (int copy = 0; copy < styles.copies(); copy++) {
+            IStyle style = styles.get(row, copy);
+            if (style != null && style != first && !signature.equals(StyleSignature.of(style)))
+                return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,115 @@
+package pl.edu.agh.mindmap.merge;
+
+import org.xmind.core.IHtmlNotesContent;
+import org.xmind.core.IHyperlinkSpan;
+import org.xmind.core.IImageSpan;
+import org.xmind.core.INotes;
+import org.xmind.core.IParagraph;
+import org.xmind.core.IPlainNotesContent;
+import org.xmind.core.ISpan;
+import org.xmind.core.ITextSpan;
+import org.xmind.core.ITopic;
+import org.xmind.core.style.IStyled;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * SHA-1 digest of notes of a topic: plain text and HTML paragraphs with their spans, hyperlinks, images and style IDs.
+ * Content of the styles is not a part of the digest, styles used by the notes are listed instead,
+ * so they can be compared by the merger.
+ * Digests of source and target topics are cached by the StyleIdentityCache of a merge.
+ */
+final class NotesDigest {
+    private static final byte PLAIN = 1, PARAGRAPH = 2, TEXT = 3, HYPERLINK = 4, IMAGE = 5, END = 6;
+
+    private final byte[] digest;
+    private final String[] styleIds;
+
+    private NotesDigest(ITopic topic) {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 not supported", e);
+        }
+        List<String> styles = new ArrayList<String>();
+        INotes notes = topic.getNotes();
+        if (!notes.isEmpty()) {
+            IPlainNotesContent plain = (IPlainNotesContent) notes.getContent(INotes.PLAIN);
+            md.update(PLAIN);
+            update(md, plain == null ? null : plain.getTextContent());
+            IHtmlNotesContent html = (IHtmlNotesContent) notes.getContent(INotes.HTML);
+            if (html != null) {
+                for (IParagraph p : html.getParagraphs()) {
+                    md.update(PARAGRAPH);
+                    updateStyle(md, p, styles);
+                    updateSpans(md, p.getSpans(), styles);
+                }
+            }
+        }
+        digest = md.digest();
+        styleIds = styles.toArray(new String[styles.size()]);
+    }
+
+    static NotesDigest of(ITopic topic) {
+        return new NotesDigest(topic);
+    }
+
+    /**
+     * Returns true if notes have the same content and use styles of the same IDs in the same places.
+     */
+    boolean sameContent(NotesDigest other) {
+        return Arrays.equals(digest, other.digest);
+    }
+
+    /**
+     * Returns IDs of styles used by paragraphs and spans of the notes, each ID once, in order of first use.
+     */
+    String[] getStyleIds() {
+        return styleIds;
+    }
+
+    private static void updateSpans(MessageDigest md, List<ISpan> spans, List<String> styles) {
+        for (ISpan span : spans) {
+            if (span instanceof ITextSpan) {
+                md.update(TEXT);
+                update(md, ((ITextSpan) span).getTextContent());
+            } else if (span instanceof IHyperlinkSpan) {
+                md.update(HYPERLINK);
+                update(md, ((IHyperlinkSpan) span).getHref());
+                updateSpans(md, ((IHyperlinkSpan) span).getSpans(), styles);
+            } else if (span instanceof IImageSpan) {
+                md.update(IMAGE);
+                update(md, ((IImageSpan) span).getSource());
+            }
+            updateStyle(md, span, styles);
+        }
+        md.update(END);
+    }
+
+    private static void updateStyle(MessageDigest md, IStyled styled, List<String> styles) {
+        String styleId = styled.getStyleId();
+        update(md, styleId);
+        if (styleId != null && !styles.contains(styleId))
+            styles.add(styleId);
+    }
+
+    private static void update(MessageDigest md, String s) {
+        if (s == null) {
+            md.update((byte) 0);
+            return;
+        }
+        md.update((byte) 1);
+        int length = s.length();
+        md.update(new byte[]{(byte) (length >>> 24), (byte) (length >>> 16), (byte) (length >>> 8), (byte) length});
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            md.update((byte) (c >>> 8));
+            md.update((byte) c);
+        }
+    }
+}
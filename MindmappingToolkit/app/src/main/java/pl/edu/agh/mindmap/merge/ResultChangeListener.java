@@ -0,0 +1,15 @@
+package pl.edu.agh.mindmap.merge;
+
+import org.xmind.core.IWorkbook;
+
+/**
+ * Receives one notification for a batch of recorded changes applied to the merge result.
+ * XMind core events of the single changes are fired as well, except to listeners registered
+ * by WorkbookMerger.registerResultListener().
+ */
+public abstract class ResultChangeListener {
+    /**
+     * @param changes number of recorded changes applied to the result, e.g. imported subtrees, summaries or styles.
+     */
+    public abstract void resultChanged(IWorkbook result, int changes);
+}
@@ -11,37 +11,322 @@ import java.util.*;
  */
 public class SheetMerger extends Conflict<ISheet> {
     private List<TopicConflict> topicConflicts = new ArrayList<TopicConflict>();
-    private List<Conflict<IRelationship>> relationshipConflicts;
+    private List<Conflict<IRelationship>> relationshipConflicts = new ArrayList<Conflict<IRelationship>>();
     private List<Conflict<ISummary>> summaryConflicts = new ArrayList<Conflict<ISummary>>();
     private List<Conflict<IBoundary>> boundaryConflicts = new ArrayList<Conflict<IBoundary>>();
     private List<ISummary> uncopiableSummaries = new ArrayList<ISummary>();
     private List<IBoundary> uncopiableBoundaries = new ArrayList<IBoundary>();
+    private final ElementIndex sourceIndex;
+    private final ElementIndex targetIndex;
+    private ElementIndex resultIndex;
+    private SubtreeFingerprints sourceFingerprints;
+    private SubtreeFingerprints targetFingerprints;
+    private SubtreeFingerprints sourceFullFingerprints;
+    private SubtreeFingerprints targetFullFingerprints;
+    private final ElementIndex ancestorIndex;
+    private final SubtreeFingerprints ancestorFingerprints;
+    private MergeContext context;
+    private List<Runnable> deferredChanges;
 
     SheetMerger(Conflict<ISheet> sheetsConflict) {
+        this(sheetsConflict, false);
+    }
+
+    SheetMerger(Conflict<ISheet> sheetsConflict, boolean deferChanges) {
+        this(sheetsConflict, null, deferChanges, new MergeContext());
+        scan();
+    }
+
+    /**
+     * Prepares merging of the sheets. Sheets are compared by scan().
+     * @param deferChanges if true, result sheet is only read while scanning and all the changes of the result sheet
+     *                     are recorded. They have to be applied afterwards by calling applyDeferredChanges().
+     *                     Result sheet of the conflict may be null if changes are deferred, it has to be provided
+     *                     by bindResult() before the changes are applied.
+     * @param ancestor common ancestor of source and target sheet for three-way merge or null for two-way merge.
+     *                 In three-way merge, properties of topics changed only in source are copied to the result,
+     *                 topics deleted from target and unchanged in source are not imported and topics deleted
+     *                 from source and unchanged in target are removed from the result.
+     * @param context state shared with other sheet mergers of the workbook merge.
+     */
+    SheetMerger(Conflict<ISheet> sheetsConflict, ISheet ancestor, boolean deferChanges, MergeContext context) {
         super(sheetsConflict.getSource(), sheetsConflict.getTarget(), sheetsConflict.getResult());
+        this.context = context;
+        sourceIndex = new ElementIndex(getSource());
+        targetIndex = new ElementIndex(getTarget());
+        if (getResult() != null)
+            resultIndex = new ElementIndex(getResult());
+        createFingerprints();
+        if (ancestor != null) {
+            ancestorIndex = new ElementIndex(ancestor);
+            ancestorFingerprints = SubtreeFingerprints.forSheet(ancestor);
+        } else {
+            ancestorIndex = null;
+            ancestorFingerprints = null;
+        }
+        if (deferChanges)
+            deferredChanges = new ArrayList<Runnable>();
+    }
 
+    /**
+     * Compares the sheets, collects conflicts and delivers them to the conflict listener of the merge.
+     * Called once, after the merger is constructed, so the listener may use the merger.
+     */
+    void scan() {
         iterateSourceSheet();
         findRelationshipConflicts();
     }
 
     /**
-     * Returns topic conflicts.
+     * Reads everything scan() reads from the workbooks, so that scan() can run on another thread, concurrently
+     * with scans of other sheets of the same workbooks. XMind creates objects of elements and of their properties
+     * lazily and registers them in unsynchronized maps of the workbook. Indexes built by the constructor
+     * and full fingerprints read all the elements and compared properties, so scan() only looks them up.
+     * Has to be called on the merging thread.
+     */
+    void prepareConcurrentScan() {
+        sourceFullFingerprints.root();
+        targetFullFingerprints.root();
+        if (ancestorFingerprints != null)
+            ancestorFingerprints.root();
+        getSource().getRelationships();
+        getTarget().getRelationships();
+        if (getResult() != null)
+            getResult().getRelationships();
+    }
+
+    /**
+     * Moves a merger scanned on another thread, in a context of its own, to the context of the workbook merge.
+     * Adds its statistics and scanned topics and delivers its conflicts to the conflict listener, grouped by kind.
+     * Delivered conflicts are then kept only if they would be kept by a merger scanned with the listener.
+     * Has to be called on the merging thread.
+     */
+    void join(MergeContext mergeContext) {
+        mergeContext.getStats().add(context.getStats());
+        mergeContext.getMonitor().join(context.getMonitor());
+        context = mergeContext;
+        ConflictListener listener = context.getConflictListener();
+        if (listener == null)
+            return;
+        for (TopicConflict conflict : topicConflicts)
+            listener.topicConflictFound(this, conflict);
+        for (Conflict<ISummary> conflict : summaryConflicts)
+            listener.summaryConflictFound(this, conflict);
+        for (Conflict<IBoundary> conflict : boundaryConflicts)
+            listener.boundaryConflictFound(this, conflict);
+        for (ISummary summary : uncopiableSummaries)
+            listener.uncopiableSummaryFound(this, summary);
+        for (IBoundary boundary : uncopiableBoundaries)
+            listener.uncopiableBoundaryFound(this, boundary);
+        for (Conflict<IRelationship> conflict : relationshipConflicts)
+            listener.relationshipConflictFound(this, conflict);
+        if (!keepConflicts()) {
+            topicConflicts.clear();
+            summaryConflicts.clear();
+            boundaryConflicts.clear();
+            uncopiableSummaries.clear();
+            uncopiableBoundaries.clear();
+            relationshipConflicts.clear();
+        }
+    }
+
+    /**
+     * Sets result sheet of a merger created without one and sets results of all the conflicts found so far.
+     */
+    void bindResult(ISheet resultSheet) {
+        setResult(resultSheet);
+        resultIndex = new ElementIndex(resultSheet);
+        for (TopicConflict conflict : topicConflicts)
+            conflict.setResult(resultIndex.findTopic(conflict.getSource().getId()));
+        for (Conflict<ISummary> conflict : summaryConflicts)
+            conflict.setResult((ISummary) resultIndex.findElement(conflict.getSource().getId()));
+        for (Conflict<IBoundary> conflict : boundaryConflicts)
+            conflict.setResult((IBoundary) resultIndex.findElement(conflict.getSource().getId()));
+        Map<String, IRelationship> resultRelationships = new HashMap<String, IRelationship>();
+        for (IRelationship relationship : resultSheet.getRelationships())
+            resultRelationships.put(relationship.getId(), relationship);
+        for (Conflict<IRelationship> conflict : relationshipConflicts)
+            conflict.setResult(resultRelationships.get(conflict.getSource().getId()));
+    }
+
+    /**
+     * Applies changes of the result sheet recorded while scanning, in the order they were recorded.
+     * Does nothing if changes were not deferred.
+     */
+    void applyDeferredChanges() {
+        if (deferredChanges == null)
+            return;
+        List<Runnable> changes = deferredChanges;
+        deferredChanges = null;
+        for (Runnable change : changes) {
+            context.getMonitor().checkCancelled();
+            change.run();
+        }
+    }
+
+    /**
+     * Merges again topics which changed since the last scan, without scanning the rest of the sheet.
+     * Result sheet has to be bound and changes must not be deferred.
+     * Conflicts of changed topics, their summaries and boundaries are replaced with new ones.
+     * Changed topics which exist only in source are imported if their parent exists in result.
+     * @param changedTopicIds IDs of topics changed in source or target, including IDs of all the topics of added
+     *                        and removed subtrees and IDs of their parents.
+     * @param resultTopicIds IDs of topics added to or removed from the result sheet. They are only reindexed,
+     *                       topics removed from result are not imported again.
+     * @param relationshipsChanged if true, relationships of the sheet are merged again.
+     */
+    void rescan(Set<String> changedTopicIds, Set<String> resultTopicIds, boolean relationshipsChanged) {
+        if (getResult() == null || deferredChanges != null)
+            throw new IllegalStateException("Cannot rescan sheet without result");
+        for (String id : changedTopicIds) {
+            sourceIndex.refreshTopic(getSource(), id);
+            targetIndex.refreshTopic(getTarget(), id);
+            resultIndex.refreshTopic(getResult(), id);
+        }
+        for (String id : resultTopicIds)
+            resultIndex.refreshTopic(getResult(), id);
+        createFingerprints();
+        removeConflictsOf(changedTopicIds);
+
+        IWorkbook sourceWorkbook = getSource().getOwnedWorkbook();
+        for (String id : changedTopicIds) {
+            context.getMonitor().topicScanned();
+            Object element = sourceWorkbook.findElement(id, null);
+            if (!(element instanceof ITopic) || !getSource().equals(((ITopic) element).getOwnedSheet()))
+                continue;
+            ITopic sourceTopic = (ITopic) element;
+            ITopic targetTopic = targetIndex.findTopic(id);
+            if (targetTopic != null) {
+                rescanExistingTopic(sourceTopic, targetTopic);
+            } else if (resultIndex.findTopic(id) == null && sourceTopic.getParent() != null
+                    && resultIndex.findTopic(sourceTopic.getParent().getId()) != null
+                    && !deletedFromTarget(sourceTopic)) {
+                // topics of a new subtree are imported with its root
+                importSubtree(sourceTopic);
+            }
+        }
+        if (relationshipsChanged)
+            findRelationshipConflicts();
+    }
+
+    /**
+     * Creates fingerprints of source and target subtrees, none of them computed yet. Subtrees of the same
+     * modification time in both sheets are skipped by the scan, so they are not fingerprinted.
+     */
+    private void createFingerprints() {
+        sourceFingerprints = SubtreeFingerprints.forSheet(getSource(), new SubtreeFingerprints.Counterparts() {
+            @Override
+            public boolean sameModifiedTime(ITopic topic) {
+                ITopic targetTopic = targetIndex.findTopic(topic.getId());
+                return targetTopic != null && targetTopic.getModifiedTime() == topic.getModifiedTime();
+            }
+        });
+        targetFingerprints = SubtreeFingerprints.forSheet(getTarget(), new SubtreeFingerprints.Counterparts() {
+            @Override
+            public boolean sameModifiedTime(ITopic topic) {
+                ITopic sourceTopic = sourceIndex.findTopic(topic.getId());
+                return sourceTopic != null && sourceTopic.getModifiedTime() == topic.getModifiedTime();
+            }
+        });
+        sourceFullFingerprints = SubtreeFingerprints.forSheet(getSource());
+        targetFullFingerprints = SubtreeFingerprints.forSheet(getTarget());
+    }
+
+    private void removeConflictsOf(Set<String> topicIds) {
+        Iterator<TopicConflict> topicIt = topicConflicts.iterator();
+        while (topicIt.hasNext()) {
+            if (topicIds.contains(topicIt.next().getSource().getId()))
+                topicIt.remove();
+        }
+        Iterator<Conflict<ISummary>> summaryIt = summaryConflicts.iterator();
+        while (summaryIt.hasNext()) {
+            if (topicIds.contains(summaryIt.next().getSource().getParent().getId()))
+                summaryIt.remove();
+        }
+        Iterator<Conflict<IBoundary>> boundaryIt = boundaryConflicts.iterator();
+        while (boundaryIt.hasNext()) {
+            if (topicIds.contains(boundaryIt.next().getSource().getParent().getId()))
+                boundaryIt.remove();
+        }
+        Iterator<ISummary> uncopiableSummaryIt = uncopiableSummaries.iterator();
+        while (uncopiableSummaryIt.hasNext()) {
+            if (topicIds.contains(uncopiableSummaryIt.next().getParent().getId()))
+                uncopiableSummaryIt.remove();
+        }
+        Iterator<IBoundary> uncopiableBoundaryIt = uncopiableBoundaries.iterator();
+        while (uncopiableBoundaryIt.hasNext()) {
+            if (topicIds.contains(uncopiableBoundaryIt.next().getParent().getId()))
+                uncopiableBoundaryIt.remove();
+        }
+    }
+
+    /**
+     * Compares a changed topic again. Unlike scanExistingTopic(), children are not scanned,
+     * changed children are rescanned on their own.
+     */
+    private void rescanExistingTopic(ITopic sourceTopic, ITopic targetTopic) {
+        context.getStats().topicVisited();
+        long start = context.getStats().startDetail();
+        ITopic ancestorTopic = ancestorIndex == null ? null : ancestorIndex.findTopic(sourceTopic.getId());
+        removeDeletedFromSource(targetTopic);
+        TopicConflict conflict = new TopicConflict(sourceTopic, targetTopic, resultIndex.findTopic(sourceTopic.getId()),
+                ancestorTopic, context.getStyleIdentityCache());
+        if (ancestorTopic != null && conflict.getResult() != null)
+            mergeSourceOnlyChanges(conflict);
+        boolean identical = conflict.areEntirelyIdentical();
+        context.getStats().topicCompared(identical, start);
+        if (!identical) {
+            if (keepConflicts())
+                topicConflicts.add(conflict);
+            if (context.getConflictListener() != null)
+                context.getConflictListener().topicConflictFound(this, conflict);
+        }
+        if (resultIndex.findTopic(sourceTopic.getId()) != null) {
+            scanSummaries(sourceTopic);
+            scanBoundaries(sourceTopic);
+        }
+    }
+
+    private void changeResult(Runnable change) {
+        if (deferredChanges != null)
+            deferredChanges.add(change);
+        else
+            change.run();
+    }
+
+    /**
+     * Returns topic conflicts. Returned list is read-only.
+     * Conflicts delivered to a ConflictListener are not kept once the result sheet is bound,
+     * so the list is empty if the merge had a listener and its result was not deferred.
      */
     public List<Conflict<ITopic>> getTopicConflicts() {
-        return new ArrayList<Conflict<ITopic>>(topicConflicts);
+        return Collections.<Conflict<ITopic>>unmodifiableList(topicConflicts);
     }
 
     /**
-     * Returns relationship conflicts.
+     * Returns relationship conflicts. Returned list is read-only.
      * Relationship conflict consists of source relationship, target relationship and result relationship.
      * All changes should be applied to result relationship!
+     * As topic conflicts, relationship conflicts delivered to a ConflictListener are not kept once the result is bound.
      */
     public List<Conflict<IRelationship>> getRelationshipConflicts() {
-        return new ArrayList<Conflict<IRelationship>>(relationshipConflicts);
+        return Collections.unmodifiableList(relationshipConflicts);
     }
 
+    /**
+     * Returns summary conflicts. Returned list is read-only.
+     * As topic conflicts, summary conflicts delivered to a ConflictListener are not kept once the result is bound.
+     */
     public List<Conflict<ISummary>> getSummaryConflicts() {
-        return summaryConflicts;
+        return Collections.unmodifiableList(summaryConflicts);
+    }
+
+    /**
+     * Returns true if found conflicts have to be kept in lists of this merger.
+     * Conflicts without result elements are kept until the result is bound, even if they are delivered to a listener.
+     */
+    private boolean keepConflicts() {
+        return context.getConflictListener() == null || getResult() == null;
     }
 
     private void iterateSourceSheet() {
@@ -60,35 +345,231 @@ public class SheetMerger extends Conflict<ISheet> {
         for (ITopic sourceChild : children) {
             if (Utils.safeEquals(sourceChild.getType(), ITopic.SUMMARY))
                 continue;
-            ITopic targetChild = getTarget().getOwnedWorkbook().findTopic(sourceChild.getId(), getTarget());
-            if (targetChild != null) {
-                if (targetChild.getModifiedTime() == sourceChild.getModifiedTime())
-                    continue;
-                ITopic resultChild = getResult().getOwnedWorkbook().findTopic(sourceChild.getId(), getResult());
-                TopicConflict conflict = new TopicConflict(sourceChild, targetChild, resultChild);
-                if(conflict.areEntirelyIdentical())
-                    continue;
+            context.getMonitor().topicScanned();
+            ITopic targetChild = targetIndex.findTopic(sourceChild.getId());
+            if (targetChild != null)
+                scanExistingTopic(sourceChild, targetChild);
+            else if (!deletedFromTarget(sourceChild))
+                importSubtree(sourceChild);
+        }
+        ITopic targetTopic = targetIndex.findTopic(sourceTopic.getId());
+        if (targetTopic != null)
+            removeDeletedFromSource(targetTopic);
+
+        scanSummaries(sourceTopic);
+        scanBoundaries(sourceTopic);
+    }
+
+    private void scanExistingTopic(ITopic sourceTopic, ITopic targetTopic) {
+        context.getStats().topicVisited();
+        if (targetTopic.getModifiedTime() == sourceTopic.getModifiedTime()) {
+            context.getStats().topicSkippedByTimestamp();
+            return;
+        }
+        // whole subtree is identical
+        if (identicalSubtrees(sourceTopic, targetTopic)) {
+            context.getStats().subtreeSkippedByFingerprint();
+            return;
+        }
+        long start = context.getStats().startDetail();
+        ITopic resultTopic = (ITopic) findResultElement(sourceTopic.getId());
+        ITopic ancestorTopic = ancestorIndex == null ? null : ancestorIndex.findTopic(sourceTopic.getId());
+        TopicConflict conflict = new TopicConflict(sourceTopic, targetTopic, resultTopic, ancestorTopic,
+                context.getStyleIdentityCache());
+        if (ancestorTopic != null)
+            mergeSourceOnlyChanges(conflict);
+        boolean identical = conflict.areEntirelyIdentical();
+        context.getStats().topicCompared(identical, start);
+        // children may differ even if the topics are identical
+        if (!identical) {
+            if (keepConflicts())
                 topicConflicts.add(conflict);
+            if (context.getConflictListener() != null)
+                context.getConflictListener().topicConflictFound(this, conflict);
+        }
+        scanTopic(sourceTopic);
+    }
+
+    /**
+     * Copies a topic which does not exist in target, together with its whole subtree, to the result in one pass.
+     * Descendants which exist in target (moved to other parent in target) or were deleted from target
+     * are removed from the copy. Moved descendants are then merged as any other topic existing in target.
+     * Summaries and boundaries of topics which lost children are imported again, one by one.
+     */
+    private void importSubtree(final ITopic sourceTopic) {
+        final List<ITopic> moved = new ArrayList<ITopic>();
+        final Set<String> excluded = new HashSet<String>();
+        final Set<ITopic> changedParents = new LinkedHashSet<ITopic>();
+        findExcludedDescendants(sourceTopic, moved, excluded, changedParents);
+
+        changeResult(new Runnable() {
+            @Override
+            public void run() {
+                ITopic resultParent = resultIndex.findTopic(sourceTopic.getParent().getId());
+                ITopic impTopic = (ITopic) importElement(sourceTopic);
+                resultParent.add(impTopic, sourceTopic.getType());
+                indexImported(impTopic, excluded);
+                for (ITopic sourceParent : changedParents)
+                    reimportSummariesAndBoundaries(sourceParent);
+            }
+        });
+
+        for (ITopic sourceChild : moved) {
+            if (!Utils.safeEquals(sourceChild.getType(), ITopic.SUMMARY))
+                scanExistingTopic(sourceChild, targetIndex.findTopic(sourceChild.getId()));
+        }
+    }
+
+    private void findExcludedDescendants(ITopic sourceTopic, List<ITopic> moved, Set<String> excluded, Set<ITopic> changedParents) {
+        for (ITopic child : sourceTopic.getAllChildren()) {
+            context.getMonitor().topicScanned();
+            if (targetIndex.findTopic(child.getId()) != null) {
+                moved.add(child);
+                excluded.add(child.getId());
+                changedParents.add(sourceTopic);
+            } else if (deletedFromTarget(child)) {
+                excluded.add(child.getId());
+                changedParents.add(sourceTopic);
             } else {
-                importChild(sourceChild);
+                findExcludedDescendants(child, moved, excluded, changedParents);
             }
-            scanTopic(sourceChild);
         }
+    }
 
-        scanSummaries(sourceTopic);
-        scanBoundaries(sourceTopic);
+    private void indexImported(ITopic imported, Set<String> excluded) {
+        resultIndex.add(imported);
+        for (ITopic child : new ArrayList<ITopic>(imported.getAllChildren())) {
+            if (excluded.contains(child.getId()))
+                imported.remove(child);
+            else
+                indexImported(child, excluded);
+        }
+    }
+
+    private void reimportSummariesAndBoundaries(ITopic sourceParent) {
+        ITopic resultParent = resultIndex.findTopic(sourceParent.getId());
+        for (ISummary summary : new ArrayList<ISummary>(resultParent.getSummaries())) {
+            resultParent.removeSummary(summary);
+            resultIndex.remove(summary);
+        }
+        for (IBoundary boundary : new ArrayList<IBoundary>(resultParent.getBoundaries())) {
+            resultParent.removeBoundary(boundary);
+            resultIndex.remove(boundary);
+        }
+        for (ITopic summaryTopic : new ArrayList<ITopic>(resultParent.getChildren(ITopic.SUMMARY))) {
+            resultParent.remove(summaryTopic);
+            resultIndex.removeSubtree(summaryTopic);
+        }
+        for (ISummary summary : sourceParent.getSummaries())
+            tryImportSummary(summary);
+        for (IBoundary boundary : sourceParent.getBoundaries())
+            tryImportBoundary(boundary);
+    }
+
+    private void mergeSourceOnlyChanges(final TopicConflict conflict) {
+        final List<TopicProperty> changes = conflict.getSourceOnlyChanges();
+        if (changes.isEmpty())
+            return;
+        changeResult(new Runnable() {
+            @Override
+            public void run() {
+                ITopic resultTopic = resultIndex.findTopic(conflict.getSource().getId());
+                for (TopicProperty property : changes)
+                    property.copy(conflict.getSource(), resultTopic);
+            }
+        });
+    }
+
+    /**
+     * Returns true if the topic exists in the common ancestor, but was deleted from target and its subtree
+     * was not changed in source since then.
+     */
+    private boolean deletedFromTarget(ITopic sourceTopic) {
+        if (ancestorIndex == null)
+            return false;
+        ITopic ancestorTopic = ancestorIndex.findTopic(sourceTopic.getId());
+        return ancestorTopic != null
+                && ancestorFingerprints.subtree(ancestorTopic) == sourceFullFingerprints.subtree(sourceTopic)
+                && TopicComparator.identicalSubtrees(ancestorTopic, sourceTopic, context.getStyleIdentityCache());
+    }
+
+    /**
+     * Removes children of the target topic which were deleted from source, see deletedFromSource(), from the result.
+     */
+    private void removeDeletedFromSource(ITopic targetTopic) {
+        if (ancestorIndex == null)
+            return;
+        for (final ITopic targetChild : targetTopic.getAllChildren()) {
+            // summary topics are removed with their summaries
+            if (Utils.safeEquals(targetChild.getType(), ITopic.SUMMARY) || !deletedFromSource(targetChild))
+                continue;
+            changeResult(new Runnable() {
+                @Override
+                public void run() {
+                    ITopic resultTopic = resultIndex.findTopic(targetChild.getId());
+                    if (resultTopic == null || resultTopic.getParent() == null)
+                        return;
+                    resultIndex.removeSubtree(resultTopic);
+                    resultTopic.getParent().remove(resultTopic);
+                }
+            });
+        }
+    }
+
+    /**
+     * Returns true if the topic exists in the common ancestor, but was deleted from source and its subtree
+     * was not changed in target since then. Mirror of deletedFromTarget(). Subtrees with descendants which still
+     * exist in source, e.g. moved to other parent in source, are not considered deleted.
+     */
+    private boolean deletedFromSource(ITopic targetTopic) {
+        if (ancestorIndex == null)
+            return false;
+        ITopic ancestorTopic = ancestorIndex.findTopic(targetTopic.getId());
+        return ancestorTopic != null
+                && noneInSource(targetTopic)
+                && ancestorFingerprints.subtree(ancestorTopic) == targetFullFingerprints.subtree(targetTopic)
+                && TopicComparator.identicalSubtrees(ancestorTopic, targetTopic, context.getStyleIdentityCache());
+    }
+
+    private boolean noneInSource(ITopic targetTopic) {
+        if (sourceIndex.findTopic(targetTopic.getId()) != null)
+            return false;
+        for (ITopic child : targetTopic.getAllChildren()) {
+            if (!noneInSource(child))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns true if subtrees of source and target topic are identical. Subtrees with different fingerprints
+     * are rejected without comparing them, equal fingerprints are confirmed by comparing the subtrees.
+     * Descendants with the same modification time in both sheets are neither fingerprinted nor compared.
+     */
+    private boolean identicalSubtrees(ITopic sourceTopic, ITopic targetTopic) {
+        return sourceFingerprints.subtree(sourceTopic) == targetFingerprints.subtree(targetTopic)
+                && TopicComparator.identicalSubtrees(sourceTopic, targetTopic, context.getStyleIdentityCache(), true);
     }
 
     private void scanSummaries(ITopic topic) {
         Iterator<ISummary> it = topic.getSummaries().iterator();
         while (it.hasNext()) {
-            ISummary sourceSum = it.next();
-            ISummary targetSum = (ISummary) getTarget().getOwnedWorkbook().findElement(sourceSum.getId(), getTarget());
+            final ISummary sourceSum = it.next();
+            ISummary targetSum = (ISummary) targetIndex.findElement(sourceSum.getId());
             if (targetSum != null) {
-                ISummary resultSum = (ISummary) getResult().getOwnedWorkbook().findElement(sourceSum.getId(), getResult());
-                summaryConflicts.add(new Conflict<ISummary>(sourceSum, targetSum, resultSum));
-            } else {
-                tryImportSummary(sourceSum);
+                ISummary resultSum = (ISummary) findResultElement(sourceSum.getId());
+                Conflict<ISummary> conflict = new Conflict<ISummary>(sourceSum, targetSum, resultSum);
+                if (keepConflicts())
+                    summaryConflicts.add(conflict);
+                if (context.getConflictListener() != null)
+                    context.getConflictListener().summaryConflictFound(this, conflict);
+            } else if (findResultElement(sourceSum.getId()) == null) {
+                changeResult(new Runnable() {
+                    @Override
+                    public void run() {
+                        tryImportSummary(sourceSum);
+                    }
+                });
             }
         }
     }
@@ -97,52 +578,47 @@ public class SheetMerger extends Conflict<ISheet> {
         List<ITopic> enclosingTopics = sourceSummary.getEnclosingTopics();
         if (enclosingTopics.isEmpty())
             return;
-        List<Integer> indexes = new ArrayList<Integer>();
-        ITopic resultParent = getResult().getOwnedWorkbook().findTopic(enclosingTopics.get(0).getId(), getResult()).getParent();
-        for (ITopic encTopic : enclosingTopics) {
-            ITopic resultTopic = getResult().getOwnedWorkbook().findTopic(encTopic.getId(), getResult());
-            if (!Utils.safeEquals(resultParent, resultTopic.getParent())) {
-                uncopiableSummaries.add(sourceSummary);
-                return;
-            }
-            indexes.add(resultTopic.getIndex());
-        }
-
-        Collections.sort(indexes);
-        Iterator<Integer> it = indexes.iterator();
-        int reqIndex = it.next() + 1;
-        while (it.hasNext()) {
-            int next = it.next();
-            if (next != reqIndex) {
-                uncopiableSummaries.add(sourceSummary);
-                return;
-            }
-            reqIndex++;
+        int[] range = MergeUtils.enclosedRange(enclosingTopics, resultIndex);
+        if (range == null) {
+            uncopiable(sourceSummary);
+            return;
         }
+        ITopic resultParent = resultIndex.findTopic(enclosingTopics.get(0).getId()).getParent();
 
-        ISummary impSummary = (ISummary) getResult().getOwnedWorkbook().importElement(sourceSummary);
-        impSummary.setStartIndex(indexes.get(0));
-        impSummary.setEndIndex(indexes.get(indexes.size() - 1));
+        ISummary impSummary = (ISummary) importElement(sourceSummary);
+        impSummary.setStartIndex(range[0]);
+        impSummary.setEndIndex(range[1]);
         resultParent.addSummary(impSummary);
+        resultIndex.add(impSummary);
 
-        ITopic impSumTopic = (ITopic) getResult().getOwnedWorkbook().importElement(sourceSummary.getTopic());
+        ITopic impSumTopic = (ITopic) importElement(sourceSummary.getTopic());
         resultParent.add(impSumTopic, ITopic.SUMMARY);
         for (ITopic child : impSumTopic.getAllChildren()) {
             impSumTopic.remove(child);
         }
+        resultIndex.add(impSumTopic);
         scanTopic(sourceSummary.getTopic());
     }
 
     private void scanBoundaries(ITopic topic) {
         Iterator<IBoundary> it = topic.getBoundaries().iterator();
         while (it.hasNext()) {
-            IBoundary sourceBnd = it.next();
-            IBoundary targetBnd = (IBoundary) getTarget().getOwnedWorkbook().findElement(sourceBnd.getId(), getTarget());
+            final IBoundary sourceBnd = it.next();
+            IBoundary targetBnd = (IBoundary) targetIndex.findElement(sourceBnd.getId());
             if (targetBnd != null) {
-                IBoundary resultBnd = (IBoundary) getResult().getOwnedWorkbook().findElement(sourceBnd.getId(), getResult());
-                boundaryConflicts.add(new Conflict<IBoundary>(sourceBnd, targetBnd, resultBnd));
-            } else {
-                tryImportBoundary(sourceBnd);
+                IBoundary resultBnd = (IBoundary) findResultElement(sourceBnd.getId());
+                Conflict<IBoundary> conflict = new Conflict<IBoundary>(sourceBnd, targetBnd, resultBnd);
+                if (keepConflicts())
+                    boundaryConflicts.add(conflict);
+                if (context.getConflictListener() != null)
+                    context.getConflictListener().boundaryConflictFound(this, conflict);
+            } else if (findResultElement(sourceBnd.getId()) == null) {
+                changeResult(new Runnable() {
+                    @Override
+                    public void run() {
+                        tryImportBoundary(sourceBnd);
+                    }
+                });
             }
         }
     }
@@ -151,71 +627,96 @@ public class SheetMerger extends Conflict<ISheet> {
         List<ITopic> enclosingTopics = sourceBoundary.getEnclosingTopics();
         if (enclosingTopics.isEmpty())
             return;
-        List<Integer> indexes = new ArrayList<Integer>();
-        ITopic resultParent = getResult().getOwnedWorkbook().findTopic(enclosingTopics.get(0).getId(), getResult()).getParent();
-        for (ITopic encTopic : enclosingTopics) {
-            ITopic resultTopic = getResult().getOwnedWorkbook().findTopic(encTopic.getId(), getResult());
-            if (!Utils.safeEquals(resultParent, resultTopic.getParent())) {
-                uncopiableBoundaries.add(sourceBoundary);
-                return;
-            }
-            indexes.add(resultTopic.getIndex());
-        }
-
-        Collections.sort(indexes);
-        Iterator<Integer> it = indexes.iterator();
-        int reqIndex = it.next() + 1;
-        while (it.hasNext()) {
-            int next = it.next();
-            if (next != reqIndex) {
-                uncopiableBoundaries.add(sourceBoundary);
-                return;
-            }
-            reqIndex++;
+        int[] range = MergeUtils.enclosedRange(enclosingTopics, resultIndex);
+        if (range == null) {
+            uncopiable(sourceBoundary);
+            return;
         }
+        ITopic resultParent = resultIndex.findTopic(enclosingTopics.get(0).getId()).getParent();
 
-        IBoundary impBoundary = (IBoundary) getResult().getOwnedWorkbook().importElement(sourceBoundary);
-        impBoundary.setStartIndex(indexes.get(0));
-        impBoundary.setEndIndex(indexes.get(indexes.size() - 1));
+        IBoundary impBoundary = (IBoundary) importElement(sourceBoundary);
+        impBoundary.setStartIndex(range[0]);
+        impBoundary.setEndIndex(range[1]);
         resultParent.addBoundary(impBoundary);
-    }
-
-    private void importChild(ITopic sourceChild) {
-        ITopic resultParent = getResult().getOwnedWorkbook().findTopic(sourceChild.getParent().getId(), getResult());
-        ITopic impTopic = (ITopic) getResult().getOwnedWorkbook().importElement(sourceChild);
-        resultParent.add(impTopic);
-        for (ITopic child : impTopic.getAllChildren()) {
-            impTopic.remove(child);
-        }
+        resultIndex.add(impBoundary);
     }
 
     private void findRelationshipConflicts() {
-        relationshipConflicts = MergeUtils.findCorrespondingElements(
-                new ArrayList<IRelationship>(getSource().getRelationships()),
-                new ArrayList<IRelationship>(getTarget().getRelationships()),
-                new ArrayList<IRelationship>(getResult().getRelationships())
+        ElementPairing<IRelationship> relationships = MergeUtils.pairElements(
+                getSource().getRelationships(),
+                getTarget().getRelationships(),
+                getResult() == null ? null : getResult().getRelationships()
         );
-        Iterator<Conflict<IRelationship>> it = relationshipConflicts.iterator();
-        while (it.hasNext()) {
-            Conflict<IRelationship> t = it.next();
-            if (t.getSource() == null || t.getTarget() == null) {
-                if (t.getSource() != null) {
-                    getResult().addRelationship((IRelationship) getResult().getOwnedWorkbook().importElement(t.getSource()));
-                }
-                it.remove();
+        List<Conflict<IRelationship>> conflicts = new ArrayList<Conflict<IRelationship>>();
+        for (int i = 0; i < relationships.size(); i++) {
+            final IRelationship sourceRel = relationships.getSource(i);
+            if (sourceRel == null)
+                continue;
+            IRelationship targetRel = relationships.getTarget(i);
+            if (targetRel != null) {
+                conflicts.add(new Conflict<IRelationship>(sourceRel, targetRel, relationships.getResult(i)));
+            } else if (relationships.getResult(i) == null) {
+                changeResult(new Runnable() {
+                    @Override
+                    public void run() {
+                        getResult().addRelationship((IRelationship) importElement(sourceRel));
+                    }
+                });
             }
         }
+        relationshipConflicts = keepConflicts() ? conflicts : new ArrayList<Conflict<IRelationship>>();
+        if (context.getConflictListener() != null) {
+            for (Conflict<IRelationship> conflict : conflicts)
+                context.getConflictListener().relationshipConflictFound(this, conflict);
+        }
     }
 
+    private Object importElement(Object sourceElement) {
+        long start = context.getStats().startDetail();
+        Object imported = getResult().getOwnedWorkbook().importElement(sourceElement);
+        context.getStats().elementImported(start);
+        return imported;
+    }
+
+    private IIdentifiable findResultElement(String id) {
+        return resultIndex == null ? null : resultIndex.findElement(id);
+    }
+
+    private void uncopiable(ISummary summary) {
+        if (keepConflicts())
+            uncopiableSummaries.add(summary);
+        if (context.getConflictListener() != null)
+            context.getConflictListener().uncopiableSummaryFound(this, summary);
+    }
+
+    private void uncopiable(IBoundary boundary) {
+        if (keepConflicts())
+            uncopiableBoundaries.add(boundary);
+        if (context.getConflictListener() != null)
+            context.getConflictListener().uncopiableBoundaryFound(this, boundary);
+    }
+
+    /**
+     * Returns summaries which could not be copied to the result. Returned list is read-only.
+     * Summaries delivered to a ConflictListener are not kept once the result is bound.
+     */
     public List<ISummary> getUncopiableSummaries() {
-        return new ArrayList<ISummary>(uncopiableSummaries);
+        return Collections.unmodifiableList(uncopiableSummaries);
     }
 
+    /**
+     * Returns boundary conflicts. Returned list is read-only.
+     * Conflicts delivered to a ConflictListener are not kept once the result is bound.
+     */
     public List<Conflict<IBoundary>> getBoundaryConflicts() {
-        return new ArrayList<Conflict<IBoundary>>(boundaryConflicts);
+        return Collections.unmodifiableList(boundaryConflicts);
     }
 
+    /**
+     * Returns boundaries which could not be copied to the result. Returned list is read-only.
+     * Boundaries delivered to a ConflictListener are not kept once the result is bound.
+     */
     public List<IBoundary> getUncopiableBoundaries() {
-        return new ArrayList<IBoundary>(uncopiableBoundaries);
+        return Collections.unmodifiableList(uncopiableBoundaries);
     }
 }
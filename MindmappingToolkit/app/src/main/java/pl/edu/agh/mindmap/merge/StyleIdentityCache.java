@@ -0,0 +1,99 @@
+package pl.edu.agh.mindmap.merge;
+
+import org.xmind.core.ITopic;
+import org.xmind.core.IWorkbook;
+import org.xmind.core.IWorkbookComponent;
+import org.xmind.core.style.IStyle;
+import org.xmind.core.style.IStyled;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Remembers results of comparisons of styles of source and target workbook elements during a single merge.
+ * Each pair of source and target style IDs is compared at most once,
+ * repeated queries do not allocate. Each style is turned into its StyleSignature once.
+ * Digests of notes of source and target topics are computed once as well.
+ * Elements of other workbooks are compared without caching.
+ * Source and target workbooks must not be modified while the cache is used.
+ */
+class StyleIdentityCache {
+    /**
+     * Compares styles without caching.
+     */
+    static final StyleIdentityCache NONE = new StyleIdentityCache(null, null);
+
+    private final IWorkbook source, target;
+    private final Map<String, Map<String, Boolean>> results = new HashMap<String, Map<String, Boolean>>();
+    private final Map<String, StyleSignature> sourceSignatures = new HashMap<String, StyleSignature>();
+    private final Map<String, StyleSignature> targetSignatures = new HashMap<String, StyleSignature>();
+    private final Map<ITopic, NotesDigest> notesDigests = new HashMap<ITopic, NotesDigest>();
+
+    StyleIdentityCache(IWorkbook source, IWorkbook target) {
+        this.source = source;
+        this.target = target;
+    }
+
+    /**
+     * Returns a new, empty cache of the same workbooks.
+     */
+    StyleIdentityCache newCache() {
+        return source == null ? NONE : new StyleIdentityCache(source, target);
+    }
+
+    boolean identicalStyles(IStyled e1, IStyled e2) {
+        if (!(e1 instanceof IWorkbookComponent) || !(e2 instanceof IWorkbookComponent))
+            return WorkbookElementsComparator.identicalStyles(e1, e2);
+        return identicalStyles(((IWorkbookComponent) e1).getOwnedWorkbook(), e1.getStyleId(),
+                ((IWorkbookComponent) e2).getOwnedWorkbook(), e2.getStyleId());
+    }
+
+    /**
+     * Compares style of ID id1 from workbook w1 with style of ID id2 from workbook w2.
+     */
+    boolean identicalStyles(IWorkbook w1, String id1, IWorkbook w2, String id2) {
+        if (source == null || id1 == null || id2 == null || w1 != source || w2 != target)
+            return WorkbookElementsComparator.areIdentical(w1.getStyleSheet().findStyle(id1), w2.getStyleSheet().findStyle(id2));
+
+        Map<String, Boolean> row = results.get(id1);
+        if (row == null) {
+            row = new HashMap<String, Boolean>();
+            results.put(id1, row);
+        }
+        Boolean identical = row.get(id2);
+        if (identical == null) {
+            StyleSignature s1 = signature(source, sourceSignatures, id1);
+            StyleSignature s2 = signature(target, targetSignatures, id2);
+            identical = s1 == null ? s2 == null : s1.equals(s2);
+            row.put(id2, identical);
+        }
+        return identical;
+    }
+
+    /**
+     * Returns digest of notes of the topic. Topics of source and target workbook are digested once.
+     */
+    NotesDigest notesDigest(ITopic topic) {
+        IWorkbook workbook = topic.getOwnedWorkbook();
+        if (source == null || (workbook != source && workbook != target))
+            return NotesDigest.of(topic);
+        NotesDigest digest = notesDigests.get(topic);
+        if (digest == null) {
+            digest = NotesDigest.of(topic);
+            notesDigests.put(topic, digest);
+        }
+        return digest;
+    }
+
+    private static StyleSignature signature(IWorkbook workbook, Map<String, StyleSignature> signatures, String styleId) {
+        StyleSignature signature = signatures.get(styleId);
+        if (signature == null) {
+            IStyle style = workbook.getStyleSheet().findStyle(styleId);
+            if (style == null)
+                return null;
+            signature = StyleSignature.of(style);
+            signatures.put(styleId, signature);
+        }
+        return signature;
+    }
+}
@@ -0,0 +1,87 @@
+package pl.edu.agh.mindmap.merge;
+
+import org.xmind.core.style.IStyle;
+import org.xmind.core.util.Property;
+import pl.edu.agh.mindmap.Utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Canonical form of a style: its ID, type, name and both property lists as arrays of keys and values sorted by key
+ * (null key first).
+ * Two styles are identical if their signatures are equal. Hash code is computed once, so unequal signatures
+ * are usually rejected without comparing the arrays.
+ */
+final class StyleSignature {
+    private static final Comparator<Property> BY_KEY = new Comparator<Property>() {
+        @Override
+        public int compare(Property p1, Property p2) {
+            if (p1.key == null)
+                return p2.key == null ? 0 : -1;
+            return p2.key == null ? 1 : p1.key.compareTo(p2.key);
+        }
+    };
+
+    private final String id, type, name;
+    private final String[] defaultStyles;
+    private final String[] properties;
+    private final int hash;
+
+    private StyleSignature(IStyle style) {
+        id = style.getId();
+        type = style.getType();
+        name = style.getName();
+        defaultStyles = toSortedArray(style.defaultStyles());
+        properties = toSortedArray(style.properties());
+        int h = id == null ? 0 : id.hashCode();
+        h = 31 * h + (type == null ? 0 : type.hashCode());
+        h = 31 * h + (name == null ? 0 : name.hashCode());
+        h = 31 * h + Arrays.hashCode(defaultStyles);
+        hash = 31 * h + Arrays.hashCode(properties);
+    }
+
+    static StyleSignature of(IStyle style) {
+        return style == null ? null : new StyleSignature(style);
+    }
+
+    /**
+     * Returns keys and values of properties, key of each property followed by its value, sorted by keys.
+     */
+    private static String[] toSortedArray(Iterator<Property> it) {
+        List<Property> list = new ArrayList<Property>();
+        while (it.hasNext())
+            list.add(it.next());
+        Collections.sort(list, BY_KEY);
+        String[] array = new String[list.size() * 2];
+        for (int i = 0; i < list.size(); i++) {
+            array[2 * i] = list.get(i).key;
+            array[2 * i + 1] = list.get(i).value;
+        }
+        return array;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o)
+            return true;
+        if (!(o instanceof StyleSignature))
+            return false;
+        StyleSignature other = (StyleSignature) o;
+        return hash == other.hash
+                && Utils.safeEquals(id, other.id)
+                && Utils.safeEquals(type, other.type)
+                && Utils.safeEquals(name, other.name)
+                && Arrays.equals(defaultStyles, other.defaultStyles)
+                && Arrays.equals(properties, other.properties);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+}
@@ -0,0 +1,238 @@
+package pl.edu.agh.mindmap.merge;
+
+import org.xmind.core.IBoundary;
+import org.xmind.core.IHtmlNotesContent;
+import org.xmind.core.IHyperlinkSpan;
+import org.xmind.core.IImage;
+import org.xmind.core.IImageSpan;
+import org.xmind.core.INotes;
+import org.xmind.core.INumbering;
+import org.xmind.core.IParagraph;
+import org.xmind.core.IPlainNotesContent;
+import org.xmind.core.ISheet;
+import org.xmind.core.ISpan;
+import org.xmind.core.ISummary;
+import org.xmind.core.ITextSpan;
+import org.xmind.core.ITopic;
+import org.xmind.core.IWorkbookComponent;
+import org.xmind.core.marker.IMarkerRef;
+import org.xmind.core.style.IStyle;
+import org.xmind.core.style.IStyled;
+import org.xmind.core.util.Point;
+import org.xmind.core.util.Property;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Content fingerprints of topic subtrees of a sheet.
+ * Fingerprint of a topic covers all the properties compared by TopicConflict (styles and notes by their content),
+ * summaries, boundaries and fingerprints of children in their order, so two subtrees with different fingerprints
+ * differ. Equal fingerprints have to be confirmed by TopicComparator.identicalSubtrees() before a subtree is skipped.
+ * Fingerprints are computed lazily, bottom-up, and cached by this object. Editing a style does not change
+ * modification time of the sheet, so fingerprints are valid only while the workbook is not modified,
+ * e.g. during a single merge.
+ * Fingerprints made for comparison with another sheet may represent subtrees which have the same modification time
+ * in both sheets only by their ID and modification time, so the cost of fingerprints follows the changed part
+ * of the sheet. Such fingerprints can be compared only with fingerprints of the other sheet made the same way.
+ */
+class SubtreeFingerprints {
+    /**
+     * Tells whether a topic has the same modification time as the topic of the same ID in the other sheet.
+     */
+    interface Counterparts {
+        boolean sameModifiedTime(ITopic topic);
+    }
+
+    private static final long NULL_HASH = 0x6a09e667f3bcc908L;
+    private static final long SEED = 0xcbf29ce484222325L;
+
+    private final ISheet sheet;
+    private final Counterparts counterparts;
+    private final Map<String, Long> fingerprints = new HashMap<String, Long>();
+
+    private SubtreeFingerprints(ISheet sheet, Counterparts counterparts) {
+        this.sheet = sheet;
+        this.counterparts = counterparts;
+    }
+
+    /**
+     * Returns new fingerprints of the sheet, none of them computed yet.
+     */
+    static SubtreeFingerprints forSheet(ISheet sheet) {
+        return new SubtreeFingerprints(sheet, null);
+    }
+
+    /**
+     * Returns new fingerprints of the sheet for comparison with another sheet. Subtrees of topics which have
+     * the same modification time in the other sheet are not fingerprinted, as the merger does not compare them either.
+     */
+    static SubtreeFingerprints forSheet(ISheet sheet, Counterparts counterparts) {
+        return new SubtreeFingerprints(sheet, counterparts);
+    }
+
+    /**
+     * Returns fingerprint of the whole topic tree of the sheet.
+     */
+    long root() {
+        return subtree(sheet.getRootTopic());
+    }
+
+    /**
+     * Returns fingerprint of the subtree rooted in given topic. Topic has to belong to the sheet of these fingerprints.
+     */
+    long subtree(ITopic topic) {
+        Long cached = fingerprints.get(topic.getId());
+        if (cached != null)
+            return cached;
+
+        long h = SEED;
+        h = combine(h, hash(topic.getId()));
+        h = combine(h, hash(topic.getTitleText()));
+        h = combine(h, hash(topic.getType()));
+        h = combine(h, hash(topic.getHyperlink()));
+        h = combine(h, hash(topic.getStructureClass()));
+        h = combine(h, topic.getTitleWidth());
+        h = combine(h, topic.isAttached() ? 1 : 0);
+        h = combine(h, hash(topic.getPosition()));
+        h = combine(h, hashLabels(topic.getLabels()));
+        h = combine(h, hashMarkerRefs(topic.getMarkerRefs()));
+        h = combine(h, hash(topic.getNumbering()));
+        h = combine(h, hash(topic.getImage()));
+        h = combine(h, hashStyle(topic));
+        h = combine(h, hash(topic.getNotes()));
+        h = combine(h, hashSummaries(topic));
+        h = combine(h, hashBoundaries(topic));
+        for (ITopic child : topic.getAllChildren()) {
+            if (counterparts != null && counterparts.sameModifiedTime(child))
+                h = combine(combine(h, hash(child.getId())), child.getModifiedTime());
+            else
+                h = combine(h, subtree(child));
+        }
+
+        fingerprints.put(topic.getId(), h);
+        return h;
+    }
+
+    private static long hashLabels(Iterable<String> labels) {
+        // order independent
+        long h = 0;
+        for (String label : labels)
+            h += fmix(hash(label));
+        return h;
+    }
+
+    private static long hashMarkerRefs(Iterable<IMarkerRef> markerRefs) {
+        long h = 0;
+        for (IMarkerRef ref : markerRefs)
+            h += fmix(combine(hash(ref.getMarkerId()), hash(ref.getDescription())));
+        return h;
+    }
+
+    private static long hashSummaries(ITopic topic) {
+        long h = 0;
+        for (ISummary summary : topic.getSummaries())
+            h += fmix(combine(combine(hash(summary.getId()), summary.getStartIndex()), summary.getEndIndex()) + hashStyle(summary));
+        return h;
+    }
+
+    private static long hashBoundaries(ITopic topic) {
+        long h = 0;
+        for (IBoundary boundary : topic.getBoundaries())
+            h += fmix(combine(combine(hash(boundary.getId()), boundary.getStartIndex()), boundary.getEndIndex()) + hashStyle(boundary));
+        return h;
+    }
+
+    private static long hash(Point p) {
+        return p == null ? NULL_HASH : combine(p.x, p.y);
+    }
+
+    private static long hash(INumbering n) {
+        return combine(combine(hash(n.getNumberFormat()), hash(n.getPrefix())), hash(n.getSuffix()));
+    }
+
+    private static long hash(IImage i) {
+        long h = hash(i.getSource());
+        h = combine(h, i.getWidth() == null ? NULL_HASH : i.getWidth());
+        h = combine(h, i.getHeight() == null ? NULL_HASH : i.getHeight());
+        return combine(h, hash(i.getAlignment()));
+    }
+
+    static long hashStyle(IStyled styled) {
+        if (!(styled instanceof IWorkbookComponent) || styled.getStyleId() == null)
+            return NULL_HASH;
+        IStyle style = ((IWorkbookComponent) styled).getOwnedWorkbook().getStyleSheet().findStyle(styled.getStyleId());
+        if (style == null)
+            return NULL_HASH;
+        long h = combine(combine(hash(style.getId()), hash(style.getType())), hash(style.getName()));
+        return combine(combine(h, hashProperties(style.defaultStyles())), hashProperties(style.properties()));
+    }
+
+    private static long hashProperties(Iterator<Property> it) {
+        long h = 0;
+        while (it.hasNext()) {
+            Property p = it.next();
+            h += fmix(combine(hash(p.key), hash(p.value)));
+        }
+        return h;
+    }
+
+    private static long hash(INotes notes) {
+        if (notes.isEmpty())
+            return NULL_HASH;
+        long h = SEED;
+        IPlainNotesContent plain = (IPlainNotesContent) notes.getContent(INotes.PLAIN);
+        if (plain != null)
+            h = combine(h, hash(plain.getTextContent()));
+        IHtmlNotesContent html = (IHtmlNotesContent) notes.getContent(INotes.HTML);
+        if (html != null) {
+            for (IParagraph p : html.getParagraphs())
+                h = combine(combine(h, hashStyle(p)), hashSpans(p.getSpans()));
+        }
+        return h;
+    }
+
+    private static long hashSpans(List<ISpan> spans) {
+        long h = SEED;
+        for (ISpan span : spans) {
+            h = combine(h, hashStyle(span));
+            if (span instanceof ITextSpan) {
+                h = combine(combine(h, 1), hash(((ITextSpan) span).getTextContent()));
+            } else if (span instanceof IHyperlinkSpan) {
+                IHyperlinkSpan hs = (IHyperlinkSpan) span;
+                h = combine(combine(combine(h, 2), hash(hs.getHref())), hashSpans(hs.getSpans()));
+            } else if (span instanceof IImageSpan) {
+                h = combine(combine(h, 3), hash(((IImageSpan) span).getSource()));
+            }
+        }
+        return h;
+    }
+
+    static long hash(String s) {
+        if (s == null)
+            return NULL_HASH;
+        // FNV-1a
+        long h = SEED;
+        for (int i = 0; i < s.length(); i++) {
+            h ^= s.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+
+    static long combine(long h, long value) {
+        return fmix(h * 0x9e3779b97f4a7c15L + value);
+    }
+
+    // finalizer of MurmurHash3
+    private static long fmix(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+}
@@ -49,6 +49,27 @@ public class TopicComparator {
     }
 
     public static boolean identicalNotes(INotes n1, INotes n2) {
+        return identicalNotes(n1, n2, StyleIdentityCache.NONE);
+    }
+
+    /**
+     * Compares notes of two topics by their digests, cached by the style cache. Styles used by the notes
+     * are compared by their content.
+     */
+    static boolean identicalNotes(ITopic t1, ITopic t2, StyleIdentityCache styles) {
+        NotesDigest d1 = styles.notesDigest(t1);
+        NotesDigest d2 = styles.notesDigest(t2);
+        if (!d1.sameContent(d2))
+            return false;
+        // digests are equal, so both notes use the same style IDs
+        for (String styleId : d1.getStyleIds()) {
+            if (!styles.identicalStyles(t1.getOwnedWorkbook(), styleId, t2.getOwnedWorkbook(), styleId))
+                return false;
+        }
+        return true;
+    }
+
+    static boolean identicalNotes(INotes n1, INotes n2, StyleIdentityCache styles) {
         if (n1.isEmpty())
             return n2.isEmpty();
         if (n2.isEmpty())
@@ -68,14 +89,14 @@ public class TopicComparator {
                 return false;
             IParagraph p1 = it1.next();
             IParagraph p2 = it2.next();
-            if (!WorkbookElementsComparator.identicalStyles(p1, p2)
-                    || !identicalSpanLists(p1.getSpans(), p2.getSpans()))
+            if (!styles.identicalStyles(p1, p2)
+                    || !identicalSpanLists(p1.getSpans(), p2.getSpans(), styles))
                 return false;
         }
         return true;
     }
 
-    private static boolean identicalSpanLists(List<ISpan> l1, List<ISpan> l2) {
+    private static boolean identicalSpanLists(List<ISpan> l1, List<ISpan> l2, StyleIdentityCache styles) {
         Iterator<ISpan> it1 = l1.iterator();
         Iterator<ISpan> it2 = l2.iterator();
         while (it1.hasNext()) {
@@ -83,7 +104,7 @@ public class TopicComparator {
                 return false;
             ISpan s1 = it1.next();
             ISpan s2 = it2.next();
-            if (!WorkbookElementsComparator.identicalStyles(s1, s2))
+            if (!styles.identicalStyles(s1, s2))
                 return false;
             if (s1 instanceof ITextSpan) {
                 if(!(s2 instanceof ITextSpan))
@@ -98,7 +119,7 @@ public class TopicComparator {
                 IHyperlinkSpan hs1 = (IHyperlinkSpan) s1;
                 IHyperlinkSpan hs2 = (IHyperlinkSpan) s2;
                 if (!Utils.safeEquals(hs1.getHref(), hs2.getHref())
-                        || !identicalSpanLists(hs1.getSpans(), hs2.getSpans()))
+                        || !identicalSpanLists(hs1.getSpans(), hs2.getSpans(), styles))
                     return false;
             } else if (s1 instanceof IImageSpan) {
                 if(!(s2 instanceof IImageSpan))
@@ -112,6 +133,75 @@ public class TopicComparator {
         return true;
     }
 
+    /**
+     * Compares two topic subtrees: properties of all their topics, summaries, boundaries and children in their order.
+     * Stops at the first difference. Used to confirm that subtrees with equal fingerprints are identical.
+     */
+    static boolean identicalSubtrees(ITopic t1, ITopic t2, StyleIdentityCache styles) {
+        return identicalSubtrees(t1, t2, styles, false);
+    }
+
+    /**
+     * Same as identicalSubtrees(), but if trustModifiedTimes is true, descendants of the same ID and modification
+     * time are considered identical without comparing them. Confirms fingerprints made with SubtreeFingerprints.Counterparts.
+     */
+    static boolean identicalSubtrees(ITopic t1, ITopic t2, StyleIdentityCache styles, boolean trustModifiedTimes) {
+        if (!t1.getId().equals(t2.getId()))
+            return false;
+        for (TopicProperty property : TopicProperty.ALL) {
+            if (!property.identical(t1, t2, styles))
+                return false;
+        }
+        if (!identicalSummaries(t1, t2, styles) || !identicalBoundaries(t1, t2, styles))
+            return false;
+        List<ITopic> children1 = t1.getAllChildren();
+        List<ITopic> children2 = t2.getAllChildren();
+        if (children1.size() != children2.size())
+            return false;
+        for (int i = 0; i < children1.size(); i++) {
+            ITopic c1 = children1.get(i), c2 = children2.get(i);
+            if (trustModifiedTimes && c1.getId().equals(c2.getId()) && c1.getModifiedTime() == c2.getModifiedTime())
+                continue;
+            if (!identicalSubtrees(c1, c2, styles, trustModifiedTimes))
+                return false;
+        }
+        return true;
+    }
+
+    private static boolean identicalSummaries(ITopic t1, ITopic t2, StyleIdentityCache styles) {
+        if (t1.getSummaries().size() != t2.getSummaries().size())
+            return false;
+        if (t1.getSummaries().isEmpty())
+            return true;
+        Map<String, ISummary> summaries = new HashMap<String, ISummary>();
+        for (ISummary summary : t2.getSummaries())
+            summaries.put(summary.getId(), summary);
+        for (ISummary s1 : t1.getSummaries()) {
+            ISummary s2 = summaries.get(s1.getId());
+            if (s2 == null || s1.getStartIndex() != s2.getStartIndex() || s1.getEndIndex() != s2.getEndIndex()
+                    || !styles.identicalStyles(s1, s2))
+                return false;
+        }
+        return true;
+    }
+
+    private static boolean identicalBoundaries(ITopic t1, ITopic t2, StyleIdentityCache styles) {
+        if (t1.getBoundaries().size() != t2.getBoundaries().size())
+            return false;
+        if (t1.getBoundaries().isEmpty())
+            return true;
+        Map<String, IBoundary> boundaries = new HashMap<String, IBoundary>();
+        for (IBoundary boundary : t2.getBoundaries())
+            boundaries.put(boundary.getId(), boundary);
+        for (IBoundary b1 : t1.getBoundaries()) {
+            IBoundary b2 = boundaries.get(b1.getId());
+            if (b2 == null || b1.getStartIndex() != b2.getStartIndex() || b1.getEndIndex() != b2.getEndIndex()
+                    || !styles.identicalStyles(b1, b2))
+                return false;
+        }
+        return true;
+    }
+
     public static boolean identicalNumbering(INumbering n1, INumbering n2) {
         return Utils.safeEquals(n1.getNumberFormat(),n2.getNumberFormat())
                 && Utils.safeEquals(n1.getPrefix(),n2.getPrefix())
@@ -1,115 +1,157 @@
 package pl.edu.agh.mindmap.merge;
 
 import org.xmind.core.ITopic;
-import pl.edu.agh.mindmap.Utils;
 
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Conflict of two topics of the same ID. Properties of the topics are compared lazily,
+ * each of them at most once, when it is queried for the first time.
+ * If the conflict has a common ancestor of source and target topic (three-way merge), a property changed on one side only
+ * is not in conflict: target change is already in the result and source change is copied to the result by the merger.
+ * Such properties are reported as identical. Source changes of properties which cannot be copied remain conflicts.
+ */
 public class TopicConflict extends Conflict<ITopic> {
-    private boolean identicalPosition;
-    private boolean identicalHyperlink;
-    private boolean identicalStructureClass;
-    private boolean identicalTitleWidth;
-    private boolean identicalTitleText;
-    private boolean identicalType;
-    private boolean identicalImage;
-    private boolean identicalLabels;
-    private boolean identicalMarkerRefs;
-    private boolean identicalNotes;
-    private boolean identicalNumbering;
-    private boolean identicalStyle;
-    private boolean identicalAttachedProperty;
+    private final ITopic ancestor;
+    private final StyleIdentityCache styles;
+    private final Boolean[] identical = new Boolean[TopicProperty.ALL.length];
+    private final Boolean[] merged = new Boolean[TopicProperty.ALL.length];
+    private final Boolean[] sourceUnchanged = new Boolean[TopicProperty.ALL.length];
+    private final Boolean[] targetUnchanged = new Boolean[TopicProperty.ALL.length];
 
     public TopicConflict(ITopic source, ITopic target, ITopic result) {
-        super(source, target, result);
-        checkIdenticalProperties();
+        this(source, target, result, null, StyleIdentityCache.NONE);
     }
 
-    private void checkIdenticalProperties() {
-        ITopic s = getSource();
-        ITopic t = getTarget();
-        // plain properties
-        identicalHyperlink = Utils.safeEquals(s.getHyperlink(), t.getHyperlink());
-        identicalStructureClass = Utils.safeEquals(s.getStructureClass(), t.getStructureClass());
-        identicalTitleText = Utils.safeEquals(s.getTitleText(), t.getTitleText());
-        identicalTitleWidth = s.getTitleWidth() == t.getTitleWidth();
-        identicalType = Utils.safeEquals(s.getType(), t.getType());
-        identicalAttachedProperty = s.isAttached() == t.isAttached();
-
-        // complex properties
-        identicalPosition = TopicComparator.identicalPositions(s.getPosition(), t.getPosition());
-        identicalImage = TopicComparator.identicalImage(s.getImage(), t.getImage());
-        identicalLabels = TopicComparator.identicalLabels(s.getLabels(), t.getLabels());
-        identicalMarkerRefs = TopicComparator.identicalMarkerRefs(s.getMarkerRefs(), t.getMarkerRefs());
-        identicalNotes = TopicComparator.identicalNotes(s.getNotes(), t.getNotes());
-        identicalNumbering = TopicComparator.identicalNumbering(s.getNumbering(), t.getNumbering());
-        identicalStyle = WorkbookElementsComparator.identicalStyles(s, t);
-    }
-
-
+    TopicConflict(ITopic source, ITopic target, ITopic result, ITopic ancestor, StyleIdentityCache styles) {
+        super(source, target, result);
+        this.ancestor = ancestor;
+        this.styles = styles;
+    }
+
+    /**
+     * Returns the common ancestor of source and target topic or null if the conflict comes from a two-way merge.
+     * Do not modify this element!
+     */
+    public ITopic getAncestor() {
+        return ancestor;
+    }
+
+    boolean haveIdentical(TopicProperty property) {
+        Boolean value = merged[property.ordinal()];
+        if (value == null) {
+            value = haveIdenticalValues(property)
+                    || (ancestor != null && (unchangedInSource(property) || unchangedInTarget(property) && property.isCopyable()));
+            merged[property.ordinal()] = value;
+        }
+        return value;
+    }
+
+    private boolean haveIdenticalValues(TopicProperty property) {
+        Boolean value = identical[property.ordinal()];
+        if (value == null) {
+            value = property.identical(getSource(), getTarget(), styles);
+            identical[property.ordinal()] = value;
+        }
+        return value;
+    }
+
+    private boolean unchangedInSource(TopicProperty property) {
+        Boolean value = sourceUnchanged[property.ordinal()];
+        if (value == null) {
+            value = property.identical(ancestor, getSource(), styles);
+            sourceUnchanged[property.ordinal()] = value;
+        }
+        return value;
+    }
+
+    private boolean unchangedInTarget(TopicProperty property) {
+        Boolean value = targetUnchanged[property.ordinal()];
+        if (value == null) {
+            value = property.identical(ancestor, getTarget(), styles);
+            targetUnchanged[property.ordinal()] = value;
+        }
+        return value;
+    }
+
+    /**
+     * Returns copyable properties changed in source topic only. Empty if the conflict has no ancestor.
+     * Source topic of the same modification time as the ancestor is not compared at all. Otherwise, each property
+     * is compared with the ancestor in the source first and only properties changed in the source are compared
+     * with the ancestor in the target.
+     */
+    List<TopicProperty> getSourceOnlyChanges() {
+        List<TopicProperty> changes = new ArrayList<TopicProperty>();
+        if (ancestor == null || ancestor.getModifiedTime() == getSource().getModifiedTime())
+            return changes;
+        for (TopicProperty property : TopicProperty.ALL) {
+            if (property.isCopyable() && !unchangedInSource(property) && unchangedInTarget(property))
+                changes.add(property);
+        }
+        return changes;
+    }
+
+    /**
+     * Compares properties from the cheapest to the most expensive one and stops at the first difference.
+     */
     public boolean areEntirelyIdentical() {
-        return identicalHyperlink
-                && identicalPosition
-                && identicalStructureClass
-                && identicalTitleText
-                && identicalTitleWidth
-                && identicalType
-                && identicalImage
-                && identicalLabels
-                && identicalMarkerRefs
-                && identicalNotes
-                && identicalNumbering
-                && identicalStyle
-                && identicalAttachedProperty;
+        for (TopicProperty property : TopicProperty.ALL) {
+            if (!haveIdentical(property))
+                return false;
+        }
+        return true;
     }
 
     public boolean haveIdenticalPosition() {
-        return identicalPosition;
+        return haveIdentical(TopicProperty.POSITION);
     }
 
     public boolean haveIdenticalHyperlink() {
-        return identicalHyperlink;
+        return haveIdentical(TopicProperty.HYPERLINK);
     }
 
     public boolean haveIdenticalStructureClass() {
-        return identicalStructureClass;
+        return haveIdentical(TopicProperty.STRUCTURE_CLASS);
     }
 
     public boolean haveIdenticalTitleWidth() {
-        return identicalTitleWidth;
+        return haveIdentical(TopicProperty.TITLE_WIDTH);
     }
 
     public boolean haveIdenticalTitleText() {
-        return identicalTitleText;
+        return haveIdentical(TopicProperty.TITLE_TEXT);
     }
 
     public boolean haveIdenticalType() {
-        return identicalType;
+        return haveIdentical(TopicProperty.TYPE);
     }
 
     public boolean haveIdenticalImage() {
-        return identicalImage;
+        return haveIdentical(TopicProperty.IMAGE);
     }
 
     public boolean haveIdenticalLabels() {
-        return identicalLabels;
+        return haveIdentical(TopicProperty.LABELS);
     }
 
     public boolean haveIdenticalMarkerRefs() {
-        return identicalMarkerRefs;
+        return haveIdentical(TopicProperty.MARKER_REFS);
     }
 
     public boolean haveIdenticalNotes() {
-        return identicalNotes;
+        return haveIdentical(TopicProperty.NOTES);
     }
 
     public boolean haveIdenticalNumbering() {
-        return identicalNumbering;
+        return haveIdentical(TopicProperty.NUMBERING);
     }
 
     public boolean haveIdenticalStyle() {
-        return identicalStyle;
+        return haveIdentical(TopicProperty.STYLE);
     }
 
     public boolean haveSameAttachment() {
-        return identicalAttachedProperty;
+        return haveIdentical(TopicProperty.ATTACHED);
     }
 }
@@ -0,0 +1,381 @@
+package pl.edu.agh.mindmap.merge;
+
+import org.xmind.core.IFileEntry;
+import org.xmind.core.IHtmlNotesContent;
+import org.xmind.core.IHyperlinkSpan;
+import org.xmind.core.IImage;
+import org.xmind.core.IImageSpan;
+import org.xmind.core.INotes;
+import org.xmind.core.IParagraph;
+import org.xmind.core.IPlainNotesContent;
+import org.xmind.core.ISpan;
+import org.xmind.core.ISpanList;
+import org.xmind.core.ITextSpan;
+import org.xmind.core.ITopic;
+import org.xmind.core.IWorkbook;
+import org.xmind.core.marker.IMarkerRef;
+import org.xmind.core.style.IStyle;
+import org.xmind.core.style.IStyleSheet;
+import org.xmind.core.style.IStyled;
+import org.xmind.core.util.HyperlinkUtils;
+import pl.edu.agh.mindmap.Utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Properties of a topic compared while merging.
+ * Properties are declared in order of increasing cost of comparison.
+ * Copyable properties can be copied between topics of different workbooks, together with the styles and
+ * attachments they refer to. Type and attachment depend on the position of the topic in the tree, which is merged
+ * with the tree, so they are not copyable and copy() leaves them unchanged. Callers copy only copyable properties.
+ */
+enum TopicProperty {
+    TITLE_TEXT {
+        @Override
+        boolean identical(ITopic s, ITopic t, StyleIdentityCache styles) {
+            return Utils.safeEquals(s.getTitleText(), t.getTitleText());
+        }
+
+        @Override
+        boolean isCopyable() {
+            return true;
+        }
+
+        @Override
+        void copy(ITopic from, ITopic to) {
+            to.setTitleText(from.getTitleText());
+        }
+    },
+    TYPE {
+        @Override
+        boolean identical(ITopic s, ITopic t, StyleIdentityCache styles) {
+            return Utils.safeEquals(s.getType(), t.getType());
+        }
+
+        @Override
+        void copy(ITopic from, ITopic to) {
+            // not copyable
+        }
+    },
+    ATTACHED {
+        @Override
+        boolean identical(ITopic s, ITopic t, StyleIdentityCache styles) {
+            return s.isAttached() == t.isAttached();
+        }
+
+        @Override
+        void copy(ITopic from, ITopic to) {
+            // not copyable
+        }
+    },
+    TITLE_WIDTH {
+        @Override
+        boolean identical(ITopic s, ITopic t, StyleIdentityCache styles) {
+            return s.getTitleWidth() == t.getTitleWidth();
+        }
+
+        @Override
+        boolean isCopyable() {
+            return true;
+        }
+
+        @Override
+        void copy(ITopic from, ITopic to) {
+            to.setTitleWidth(from.getTitleWidth());
+        }
+    },
+    HYPERLINK {
+        @Override
+        boolean identical(ITopic s, ITopic t, StyleIdentityCache styles) {
+            return Utils.safeEquals(s.getHyperlink(), t.getHyperlink());
+        }
+
+        @Override
+        boolean isCopyable() {
+            return true;
+        }
+
+        @Override
+        void copy(ITopic from, ITopic to) {
+            to.setHyperlink(from.getHyperlink());
+        }
+    },
+    STRUCTURE_CLASS {
+        @Override
+        boolean identical(ITopic s, ITopic t, StyleIdentityCache styles) {
+            return Utils.safeEquals(s.getStructureClass(), t.getStructureClass());
+        }
+
+        @Override
+        boolean isCopyable() {
+            return true;
+        }
+
+        @Override
+        void copy(ITopic from, ITopic to) {
+            to.setStructureClass(from.getStructureClass());
+        }
+    },
+    POSITION {
+        @Override
+        boolean identical(ITopic s, ITopic t, StyleIdentityCache styles) {
+            return TopicComparator.identicalPositions(s.getPosition(), t.getPosition());
+        }
+
+        @Override
+        boolean isCopyable() {
+            return true;
+        }
+
+        @Override
+        void copy(ITopic from, ITopic to) {
+            to.setPosition(from.getPosition());
+        }
+    },
+    LABELS {
+        @Override
+        boolean identical(ITopic s, ITopic t, StyleIdentityCache styles) {
+            return TopicComparator.identicalLabels(s.getLabels(), t.getLabels());
+        }
+
+        @Override
+        boolean isCopyable() {
+            return true;
+        }
+
+        @Override
+        void copy(ITopic from, ITopic to) {
+            to.setLabels(from.getLabels());
+        }
+    },
+    NUMBERING {
+        @Override
+        boolean identical(ITopic s, ITopic t, StyleIdentityCache styles) {
+            return TopicComparator.identicalNumbering(s.getNumbering(), t.getNumbering());
+        }
+
+        @Override
+        boolean isCopyable() {
+            return true;
+        }
+
+        @Override
+        void copy(ITopic from, ITopic to) {
+            to.getNumbering().setFormat(from.getNumbering().getNumberFormat());
+            to.getNumbering().setPrefix(from.getNumbering().getPrefix());
+            to.getNumbering().setSuffix(from.getNumbering().getSuffix());
+        }
+    },
+    IMAGE {
+        @Override
+        boolean identical(ITopic s, ITopic t, StyleIdentityCache styles) {
+            return TopicComparator.identicalImage(s.getImage(), t.getImage());
+        }
+
+        @Override
+        boolean isCopyable() {
+            return true;
+        }
+
+        @Override
+        void copy(ITopic from, ITopic to) {
+            IImage image = from.getImage();
+            IImage toImage = to.getImage();
+            toImage.setSource(importAttachment(image.getSource(), from.getOwnedWorkbook(), to.getOwnedWorkbook()));
+            toImage.setSize(image.getWidth(), image.getHeight());
+            toImage.setAlignment(image.getAlignment());
+        }
+    },
+    MARKER_REFS {
+        @Override
+        boolean identical(ITopic s, ITopic t, StyleIdentityCache styles) {
+            return TopicComparator.identicalMarkerRefs(s.getMarkerRefs(), t.getMarkerRefs());
+        }
+
+        @Override
+        boolean isCopyable() {
+            return true;
+        }
+
+        @Override
+        void copy(ITopic from, ITopic to) {
+            Map<String, String> descriptions = new HashMap<String, String>();
+            for (IMarkerRef ref : from.getMarkerRefs())
+                descriptions.put(ref.getMarkerId(), ref.getDescription());
+            for (IMarkerRef ref : new ArrayList<IMarkerRef>(to.getMarkerRefs())) {
+                if (!descriptions.containsKey(ref.getMarkerId()))
+                    to.removeMarker(ref.getMarkerId());
+            }
+            for (IMarkerRef ref : from.getMarkerRefs()) {
+                if (!to.hasMarker(ref.getMarkerId()))
+                    to.addMarker(ref.getMarkerId());
+            }
+            for (IMarkerRef ref : to.getMarkerRefs()) {
+                String description = descriptions.get(ref.getMarkerId());
+                if (!Utils.safeEquals(description, ref.getDescription()))
+                    ref.setDescription(description);
+            }
+        }
+    },
+    STYLE {
+        @Override
+        boolean identical(ITopic s, ITopic t, StyleIdentityCache styles) {
+            return styles.identicalStyles(s, t);
+        }
+
+        @Override
+        boolean isCopyable() {
+            return true;
+        }
+
+        @Override
+        void copy(ITopic from, ITopic to) {
+            to.setStyleId(importStyle(from.getStyleId(), from.getOwnedWorkbook(), to.getOwnedWorkbook()));
+        }
+    },
+    NOTES {
+        @Override
+        boolean identical(ITopic s, ITopic t, StyleIdentityCache styles) {
+            return TopicComparator.identicalNotes(s, t, styles);
+        }
+
+        @Override
+        boolean isCopyable() {
+            return true;
+        }
+
+        @Override
+        void copy(ITopic from, ITopic to) {
+            INotes fromNotes = from.getNotes();
+            INotes notes = to.getNotes();
+            if (fromNotes.isEmpty()) {
+                notes.setContent(INotes.PLAIN, null);
+                notes.setContent(INotes.HTML, null);
+                return;
+            }
+            IWorkbook fromWorkbook = from.getOwnedWorkbook();
+            IWorkbook toWorkbook = to.getOwnedWorkbook();
+            IPlainNotesContent fromPlain = (IPlainNotesContent) fromNotes.getContent(INotes.PLAIN);
+            IPlainNotesContent plain = null;
+            if (fromPlain != null) {
+                plain = (IPlainNotesContent) toWorkbook.createNotesContent(INotes.PLAIN);
+                plain.setTextContent(fromPlain.getTextContent());
+            }
+            notes.setContent(INotes.PLAIN, plain);
+
+            IHtmlNotesContent fromHtml = (IHtmlNotesContent) fromNotes.getContent(INotes.HTML);
+            IHtmlNotesContent html = null;
+            if (fromHtml != null) {
+                html = (IHtmlNotesContent) toWorkbook.createNotesContent(INotes.HTML);
+                for (IParagraph fromParagraph : fromHtml.getParagraphs()) {
+                    IParagraph paragraph = html.createParagraph();
+                    copyStyle(fromParagraph, paragraph, fromWorkbook, toWorkbook);
+                    copySpans(fromParagraph, paragraph, html, fromWorkbook, toWorkbook);
+                    html.addParagraph(paragraph);
+                }
+            }
+            notes.setContent(INotes.HTML, html);
+        }
+    };
+
+    static final TopicProperty[] ALL = values();
+
+    /**
+     * @param styles cache used for comparisons of styles.
+     */
+    abstract boolean identical(ITopic s, ITopic t, StyleIdentityCache styles);
+
+    boolean isCopyable() {
+        return false;
+    }
+
+    /**
+     * Sets the property of a topic to its value in another topic, possibly of another workbook.
+     * Does nothing if the property is not copyable.
+     */
+    abstract void copy(ITopic from, ITopic to);
+
+    private static void copySpans(ISpanList from, ISpanList to, IHtmlNotesContent html,
+                                  IWorkbook fromWorkbook, IWorkbook toWorkbook) {
+        for (ISpan fromSpan : from.getSpans()) {
+            ISpan span;
+            if (fromSpan instanceof ITextSpan) {
+                span = html.createTextSpan(((ITextSpan) fromSpan).getTextContent());
+            } else if (fromSpan instanceof IHyperlinkSpan) {
+                IHyperlinkSpan hyperlink = html.createHyperlinkSpan(((IHyperlinkSpan) fromSpan).getHref());
+                copySpans((IHyperlinkSpan) fromSpan, hyperlink, html, fromWorkbook, toWorkbook);
+                span = hyperlink;
+            } else if (fromSpan instanceof IImageSpan) {
+                span = html.createImageSpan(importAttachment(((IImageSpan) fromSpan).getSource(), fromWorkbook, toWorkbook));
+            } else {
+                continue;
+            }
+            copyStyle(fromSpan, span, fromWorkbook, toWorkbook);
+            to.addSpan(span);
+        }
+    }
+
+    private static void copyStyle(IStyled from, IStyled to, IWorkbook fromWorkbook, IWorkbook toWorkbook) {
+        to.setStyleId(importStyle(from.getStyleId(), fromWorkbook, toWorkbook));
+    }
+
+    /**
+     * Returns ID of the style in the other workbook. The style is imported unless an identical style of the same ID
+     * exists there. Returns null if the style does not exist.
+     */
+    private static String importStyle(String styleId, IWorkbook from, IWorkbook to) {
+        if (styleId == null || from == to)
+            return styleId;
+        IStyle style = from.getStyleSheet().findStyle(styleId);
+        if (style == null)
+            return null;
+        IStyleSheet toStyles = to.getStyleSheet();
+        IStyle existing = toStyles.findStyle(styleId);
+        if (existing != null && StyleSignature.of(existing).equals(StyleSignature.of(style)))
+            return styleId;
+        IStyle imported = toStyles.importStyle(style);
+        if (imported == null)
+            return null;
+        if (toStyles.findStyle(imported.getId()) == null)
+            toStyles.addStyle(imported, styleGroup(from.getStyleSheet(), style));
+        return imported.getId();
+    }
+
+    private static String styleGroup(IStyleSheet styleSheet, IStyle style) {
+        for (String group : Arrays.asList(IStyleSheet.NORMAL_STYLES, IStyleSheet.MASTER_STYLES)) {
+            if (styleSheet.getStyles(group).contains(style))
+                return group;
+        }
+        return IStyleSheet.AUTOMATIC_STYLES;
+    }
+
+    /**
+     * Returns URL of the attachment in the other workbook. The attachment is copied unless the other workbook has
+     * an attachment of the same path, which is the same file as long as the workbooks were cloned from each other.
+     * URLs of other resources are returned unchanged.
+     */
+    private static String importAttachment(String url, IWorkbook from, IWorkbook to) {
+        if (url == null || from == to || !HyperlinkUtils.isAttachmentURL(url))
+            return url;
+        String path = HyperlinkUtils.toAttachmentPath(url);
+        if (to.getManifest().getFileEntry(path) != null)
+            return url;
+        IFileEntry entry = from.getManifest().getFileEntry(path);
+        InputStream is = entry == null ? null : entry.getInputStream();
+        if (is == null)
+            return url;
+        try {
+            IFileEntry imported = to.getManifest().createAttachmentFromStream(is, path);
+            return HyperlinkUtils.toAttachmentURL(imported.getPath());
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot copy attachment " + path, e);
+        } finally {
+            Utils.closeQuietly(is);
+        }
+    }
+}
@@ -5,14 +5,9 @@ import org.xmind.core.IWorkbook;
 import org.xmind.core.IWorkbookComponent;
 import org.xmind.core.style.IStyle;
 import org.xmind.core.style.IStyled;
-import org.xmind.core.util.Property;
 import pl.edu.agh.mindmap.Utils;
 
 
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.Map;
-
 public class WorkbookElementsComparator {
 
     public static boolean areIdentical(IRelationship r1, IRelationship r2) {
@@ -43,27 +38,7 @@ public class WorkbookElementsComparator {
         if(s1==null && s2==null)
             return true;
         return !(s1 == null || s2 == null)
-                && !(!s1.getId().equals(s2.getId())
-                    || !Utils.safeEquals(s1.getType(), s2.getType())
-                    || !Utils.safeEquals(s1.getName(), s2.getName()))
-                && equalProperties(s1.defaultStyles(), s2.defaultStyles())
-                && equalProperties(s1.properties(), s2.properties());
-    }
-
-    private static boolean equalProperties(Iterator<Property> it1, Iterator<Property> it2) {
-        Map<String, String> props1 = new HashMap<String, String>();
-        while(it1.hasNext()) {
-            Property p = it1.next();
-            props1.put(p.key, p.value);
-        }
-
-        int i=0;
-        while(it2.hasNext()){
-            Property p = it2.next();
-            if(!Utils.safeEquals(p.value,props1.get(p.key)))
-                return false;
-            i++;
-        }
-        return i == props1.size();
+                && s1.getId().equals(s2.getId())
+                && StyleSignature.of(s1).equals(StyleSignature.of(s2));
     }
 }
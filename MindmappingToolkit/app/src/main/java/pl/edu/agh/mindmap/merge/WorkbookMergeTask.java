@@ -0,0 +1,88 @@
+package pl.edu.agh.mindmap.merge;
+
+import android.os.AsyncTask;
+import android.util.Log;
+
+import pl.edu.agh.mindmap.ResultListener;
+import pl.edu.agh.mindmap.Utils;
+import pl.edu.agh.mindmap.dropbox.TaskCanceller;
+
+/**
+ * Runs a workbook merge in background: merges sheets and styles and creates the result workbook.
+ * Number of scanned topics is published through ResultListener.publishProgress().
+ */
+public class WorkbookMergeTask extends AsyncTask<Void, Long, WorkbookMerger> {
+    private static final String TAG = WorkbookMergeTask.class.getSimpleName();
+    private final WorkbookMerger merger;
+    private final ResultListener<WorkbookMerger, Exception> resultListener;
+    private final MergeMonitor monitor;
+    private Exception ex;
+
+    private WorkbookMergeTask(WorkbookMerger merger, ResultListener<WorkbookMerger, Exception> resultListener) {
+        this.merger = merger;
+        this.resultListener = resultListener;
+        monitor = new MergeMonitor() {
+            @Override
+            protected void progress(long topicsScanned) {
+                publishProgress(topicsScanned);
+            }
+        };
+        merger.setMonitor(monitor);
+    }
+
+    /**
+     * Starts merge in background. Merger should be created with deferred result, otherwise target workbook
+     * is cloned by its constructor on the calling thread. Conflicts are available from the merger
+     * (mergeSheets() and mergeStyles() return the already found conflicts) when the task is done.
+     * @param resultListener methods taskDone or taskFailed are invoked if task wasn't cancelled through TaskCanceller.
+     * @return TaskCanceller allows to cancel task at any time. Cancelled merger has to be discarded.
+     */
+    public static TaskCanceller mergeInBackground(WorkbookMerger merger, ResultListener<WorkbookMerger, Exception> resultListener) {
+        Utils.checkNotNull(merger, resultListener);
+        WorkbookMergeTask task = new WorkbookMergeTask(merger, resultListener);
+        task.execute();
+        return task.getTaskCanceller();
+    }
+
+    @Override
+    protected WorkbookMerger doInBackground(Void... voids) {
+        try {
+            merger.mergeSheets();
+            merger.mergeStyles();
+            merger.createResult();
+            return merger;
+        } catch (MergeCancelledException e) {
+            Log.i(TAG, "Merge cancelled");
+        } catch (WorkbookCloningException e) {
+            Log.e(TAG, "Merge failed", e);
+            ex = e;
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Merge failed", e);
+            ex = e;
+        }
+        return null;
+    }
+
+    @Override
+    protected void onProgressUpdate(Long... topicsScanned) {
+        resultListener.publishProgress(topicsScanned[0]);
+    }
+
+    @Override
+    protected void onPostExecute(WorkbookMerger result) {
+        if (ex != null)
+            resultListener.taskFailed(ex);
+        else
+            resultListener.taskDone(result);
+    }
+
+    public TaskCanceller getTaskCanceller() {
+        return new TaskCanceller() {
+            @Override
+            public void cancel() {
+                monitor.cancel();
+                WorkbookMergeTask.this.cancel(false);
+            }
+        };
+    }
+}
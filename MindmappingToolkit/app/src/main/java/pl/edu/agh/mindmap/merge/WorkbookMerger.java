@@ -2,78 +2,514 @@ package pl.edu.agh.mindmap.merge;
 
 import org.xmind.core.CoreException;
 import org.xmind.core.ISheet;
+import org.xmind.core.ITopic;
 import org.xmind.core.IWorkbook;
+import org.xmind.core.event.CoreEvent;
+import org.xmind.core.event.ICoreEventListener;
+import org.xmind.core.event.ICoreEventRegistration;
+import org.xmind.core.event.ICoreEventSource;
 import org.xmind.core.style.IStyle;
 import org.xmind.core.style.IStyleSheet;
 import pl.edu.agh.mindmap.Utils;
 
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Helper class for merging of two workbooks into one.
  * Source and target workbooks remain unchanged and should not be modified during merge!
- * The result of the merge is initially a clone of the target workbook.
+ * The result of the merge is initially a clone of the target workbook. Cloning can be deferred until the result
+ * is requested, in which case changes of the result are recorded during merge and applied to the clone when it is created.
  * In process of merging, elements which exist in source workbook but not in target workbook are automatically copied to result workbook.
  * Elements which exist in both source and target workbooks are returned as conflicts.
  * Conflict is only an indication that two elements differ in properties, but conflict resolution has to be done by manually
  * by modifying properties of result element. Conflicts cannot be resolved automatically because
- * they have to be decided by the user.
+ * they have to be decided by the user, resolveConflicts() applies the policies the user chose to many of them at once.
+ * In three-way merge, topic properties changed in only one of the workbooks since their common revision are not
+ * conflicts and are merged automatically, and so are topics deleted from only one of them.
+ * Each change of the result fires XMind core events and updates modification times, also when changes are recorded
+ * and applied together, see recordChanges(), as XMind cannot suspend them. Listeners registered by registerResultListener()
+ * do not receive events of the applied recorded changes, a ResultChangeListener is notified once for all of them instead.
  */
 public class WorkbookMerger extends Conflict {
     private static final String CLONING_FAILED = "Cloning target workbook failed";
 
     private IWorkbook source, target, result;
     private List<SheetMerger> sheetMergers;
+    private Map<String, List<Conflict<IStyle>>> styleConflicts;
+    private boolean parallelSheetMerging;
+    private boolean threeWayMerge;
+    private final MergeContext context = new MergeContext();
+    private final MemoryBudget memoryBudget;
+    private long targetStorageSize;
+    private List<Runnable> deferredChanges;
+    private ResultChangeListener resultChangeListener;
+    private boolean applyingChanges;
+
     /**
      * @param source workbook from which changes will be added to result workbook.
      * @param target workbook which will be cloned and changes will be added from source workbook to result workbook (clone of target workbook).
      * @throws WorkbookCloningException thrown if target workbook could not be cloned.
      */
     public WorkbookMerger(IWorkbook source, IWorkbook target) throws WorkbookCloningException {
+        this(source, target, false);
+    }
+
+    /**
+     * @param source workbook from which changes will be added to result workbook.
+     * @param target workbook which will be cloned and changes will be added from source workbook to result workbook (clone of target workbook).
+     * @param deferResult if true, target workbook is not cloned until the result is requested. Merging only compares
+     *                    source and target workbooks and records the changes of the result. Result workbook is created
+     *                    and the changes are applied by createResult() or the first call of getResult().
+     *                    Until then, conflicts have no result elements.
+     * @throws WorkbookCloningException thrown if target workbook could not be cloned.
+     */
+    public WorkbookMerger(IWorkbook source, IWorkbook target, boolean deferResult) throws WorkbookCloningException {
+        this(source, target, deferResult, null);
+    }
+
+    /**
+     * @param source workbook from which changes will be added to result workbook.
+     * @param target workbook which will be cloned and changes will be added from source workbook to result workbook (clone of target workbook).
+     * @param deferResult if true, target workbook is not cloned until the result is requested.
+     * @param memoryBudget if not null, temp storages of source, target and result workbooks which do not fit
+     *                     into the budget are kept on disk. Temp storages of source and target may be moved to disk
+     *                     during the merge, their content stays the same and MemoryBudget.release() moves them back
+     *                     to memory. Otherwise, the result shares temp storage of the target workbook.
+     * @throws WorkbookCloningException thrown if target workbook could not be cloned
+     *                                  or temp storages could not be moved to disk.
+     */
+    public WorkbookMerger(IWorkbook source, IWorkbook target, boolean deferResult, MemoryBudget memoryBudget)
+            throws WorkbookCloningException {
         if (source == null || target == null)
             throw new IllegalArgumentException("Null sheet passed");
         this.source = source;
         this.target = target;
+        this.memoryBudget = memoryBudget;
+        if (memoryBudget != null) {
+            try {
+                targetStorageSize = memoryBudget.fit(target);
+                memoryBudget.fit(source);
+            } catch (IOException e) {
+                throw new WorkbookCloningException("Moving temp storage to disk failed", e);
+            }
+        }
+        context.setStyleIdentityCache(new StyleIdentityCache(source, target));
+        if (deferResult)
+            deferredChanges = new ArrayList<Runnable>();
+        else
+            result = cloneTarget();
+    }
+
+    private IWorkbook cloneTarget() throws WorkbookCloningException {
+        long start = System.nanoTime();
         try {
-            result = Utils.cloneWorkbook(target);
+            if (memoryBudget == null)
+                return Utils.cloneWorkbook(target);
+            // size of the last saved content is a good estimate, attachments are the bulk of storage
+            return Utils.cloneWorkbook(target, memoryBudget.createStorage(targetStorageSize));
         } catch (IOException e) {
             throw new WorkbookCloningException(CLONING_FAILED, e);
         } catch (CoreException e) {
             throw new WorkbookCloningException(CLONING_FAILED, e);
+        } finally {
+            context.getStats().addTime(MergeStats.Phase.CLONE, System.nanoTime() - start);
         }
     }
 
+    /**
+     * Creates result workbook if it was deferred: clones target workbook, applies all the changes recorded so far
+     * and sets result elements of all the conflicts returned so far. Does nothing if result already exists.
+     * @throws WorkbookCloningException thrown if target workbook could not be cloned.
+     */
+    public IWorkbook createResult() throws WorkbookCloningException {
+        if (result != null)
+            return result;
+        result = cloneTarget();
+        applyDeferredChanges();
+        return result;
+    }
+
+    /**
+     * Starts recording changes of the existing result made by mergeSheets() and mergeStyles(). The changes are
+     * applied together by applyRecordedChanges(), followed by a single notification of the ResultChangeListener.
+     * XMind core events are still fired and modification times updated for each applied change, only listeners
+     * registered by registerResultListener() skip them. Result elements of conflicts are available
+     * immediately. Changes of deferred result are always recorded.
+     */
+    public WorkbookMerger recordChanges() {
+        if (deferredChanges == null)
+            deferredChanges = new ArrayList<Runnable>();
+        return this;
+    }
+
+    /**
+     * Applies changes of the result recorded since recordChanges(). Does nothing if the result is deferred,
+     * its changes are applied when it is created.
+     */
+    public void applyRecordedChanges() {
+        if (result != null && deferredChanges != null)
+            applyDeferredChanges();
+    }
+
+    /**
+     * Sets listener notified once after recorded changes are applied to the result by applyRecordedChanges()
+     * or createResult().
+     */
+    public WorkbookMerger setResultChangeListener(ResultChangeListener resultChangeListener) {
+        this.resultChangeListener = resultChangeListener;
+        return this;
+    }
+
+    /**
+     * Registers listener of XMind core events of given type fired by the result workbook. Events of recorded changes
+     * applied by applyRecordedChanges() or createResult() are not delivered to the listener, the ResultChangeListener
+     * is notified once for them instead. Events of other changes of the result are delivered as usual.
+     * @throws IllegalStateException thrown if the result is deferred and not created yet.
+     */
+    public ICoreEventRegistration registerResultListener(String type, final ICoreEventListener listener) {
+        if (result == null)
+            throw new IllegalStateException("Result is not created yet");
+        if (!(result instanceof ICoreEventSource))
+            throw new IllegalArgumentException("Workbook does not support change events");
+        return ((ICoreEventSource) result).getCoreEventSupport().registerGlobalListener(type, new ICoreEventListener() {
+            @Override
+            public void handleCoreEvent(CoreEvent event) {
+                if (!applyingChanges)
+                    listener.handleCoreEvent(event);
+            }
+        });
+    }
+
+    /**
+     * Resolves topic conflicts by the policies of the resolver. Changes of the result topics are applied as one batch
+     * of recorded changes: listeners registered by registerResultListener() do not receive their events
+     * and the ResultChangeListener is notified once. If changes are being recorded, the resolution is applied
+     * together with them by applyRecordedChanges().
+     * @return number of conflicts whose result topic is changed.
+     */
+    public int resolveConflicts(ConflictResolver resolver, Collection<? extends Conflict<ITopic>> conflicts) {
+        List<Runnable> changes = new ArrayList<Runnable>();
+        resolver.collectChanges(conflicts, changes);
+        if (deferredChanges != null) {
+            deferredChanges.addAll(changes);
+        } else {
+            deferredChanges = changes;
+            applyDeferredChanges();
+        }
+        return changes.size();
+    }
+
+    private void applyDeferredChanges() {
+        List<Runnable> changes = deferredChanges;
+        deferredChanges = null;
+        long start = System.nanoTime();
+        applyingChanges = true;
+        try {
+            for (Runnable change : changes) {
+                context.getMonitor().checkCancelled();
+                change.run();
+            }
+        } finally {
+            applyingChanges = false;
+        }
+        context.getStats().addTime(MergeStats.Phase.APPLY, System.nanoTime() - start);
+        if (resultChangeListener != null && !changes.isEmpty())
+            resultChangeListener.resultChanged(result, changes.size());
+    }
+
+    private void changeResult(Runnable change) {
+        if (deferredChanges != null)
+            deferredChanges.add(change);
+        else
+            change.run();
+    }
+
+    /**
+     * If set to true, mergeSheets() compares sheets concurrently, one sheet per thread. The merging thread
+     * first reads all the merged sheets, so the other threads only read what is already loaded. Changes of the result
+     * are recorded by each thread and applied on the merging thread afterwards, sheet after sheet in the order
+     * of sequential merge, so the result is the same. Conflicts are delivered to the ConflictListener
+     * on the merging thread, once all the sheets are compared. Disabled by default.
+     */
+    public WorkbookMerger setParallelSheetMerging(boolean parallelSheetMerging) {
+        this.parallelSheetMerging = parallelSheetMerging;
+        return this;
+    }
+
+    /**
+     * If set to true, mergeSheets() looks for the newest revision of each sheet stored in revision repositories of both
+     * source and target workbook and uses it as a common ancestor. Changes made in only one of the workbooks since then
+     * are merged automatically, including images and notes with the attachments they refer to, and only properties
+     * changed in both workbooks are returned as conflicts.
+     * Topics deleted from one of the workbooks and unchanged in the other one are not kept in the result.
+     * Sheets without a common revision are merged as in two-way merge. Disabled by default.
+     */
+    public WorkbookMerger setThreeWayMerge(boolean threeWayMerge) {
+        this.threeWayMerge = threeWayMerge;
+        return this;
+    }
+
+    /**
+     * Sets monitor which follows progress of merging and allows to cancel it from another thread.
+     * Once cancelled, merging methods throw MergeCancelledException and the merger has to be discarded.
+     */
+    public WorkbookMerger setMonitor(MergeMonitor monitor) {
+        Utils.checkNotNull(monitor);
+        context.setMonitor(monitor);
+        return this;
+    }
+
+    /**
+     * If set to true, statistics include time of comparisons of topic properties and of imports of elements.
+     * They are timed one by one, which slows down merging of large sheets. Disabled by default.
+     */
+    public WorkbookMerger setDetailedTiming(boolean detailedTiming) {
+        context.getStats().setDetailedTiming(detailedTiming);
+        return this;
+    }
+
+    /**
+     * Returns statistics of this merge, updated by the merging thread.
+     */
+    public MergeStats getStats() {
+        return context.getStats();
+    }
+
     /**
      * Copies all the sheets which exist in source workbook to result workbook.
      * Returns a list of sheet mergers. One sheet merger for each sheet which exists in both source and target workbook.
      */
     public List<SheetMerger> mergeSheets() {
+        return mergeSheets(null);
+    }
+
+    /**
+     * Same as mergeSheets(), but conflicts are delivered to the listener as soon as they are found, while the sheets
+     * are still being merged. Delivered conflicts are not kept by sheet mergers, unless the result workbook is deferred.
+     * If sheets were already merged, returns the same sheet mergers and does not invoke the listener.
+     * @param listener receives conflicts, may be null.
+     */
+    public List<SheetMerger> mergeSheets(ConflictListener listener) {
         if(sheetMergers !=null)
             return sheetMergers;
+        context.setConflictListener(listener);
+        long start = System.nanoTime();
 
-        List<Conflict<ISheet>> sheetConflicts = MergeUtils.findCorrespondingElements(source.getSheets(), target.getSheets(), result.getSheets());
+        List<Conflict<ISheet>> sheetConflicts = MergeUtils.findCorrespondingElements(source.getSheets(), target.getSheets(),
+                result == null ? null : result.getSheets());
         List<SheetMerger> sheetMergers = new LinkedList<SheetMerger>();
 
-        for (Conflict<ISheet> conflict : sheetConflicts) {
-            if (conflict.getSource() != null
-                    && conflict.getTarget() != null) {
-                if (conflict.getSource().getModifiedTime() != conflict.getTarget().getModifiedTime()) {
-                    sheetMergers.add(new SheetMerger(conflict));
+        if (parallelSheetMerging) {
+            mergeSheetsInParallel(sheetConflicts, sheetMergers);
+        } else {
+            for (Conflict<ISheet> conflict : sheetConflicts) {
+                if (differentSheets(conflict)) {
+                    SheetMerger merger = new SheetMerger(conflict, findAncestor(conflict), deferredChanges != null, context);
+                    merger.scan();
+                    changeResult(sheetMergerChanges(merger));
+                    sheetMergers.add(merger);
+                } else if (conflict.getSource() != null && conflict.getTarget() == null) {
+                    changeResult(sheetImport(conflict.getSource()));
                 }
-            } else if (conflict.getSource() != null) {
-                result.addSheet((ISheet) result.importElement(conflict.getSource()));
             }
         }
         this.sheetMergers = sheetMergers;
+        context.getStats().addTime(MergeStats.Phase.SCAN, System.nanoTime() - start);
         return sheetMergers;
     }
 
+    private void mergeSheetsInParallel(List<Conflict<ISheet>> sheetConflicts, List<SheetMerger> sheetMergers) {
+        MergeMonitor scans = new MergeMonitor(context.getMonitor());
+        // mergers, their indexes and revisions are created on this thread, only scans run concurrently
+        Map<Conflict<ISheet>, SheetMerger> mergers = new LinkedHashMap<Conflict<ISheet>, SheetMerger>();
+        for (Conflict<ISheet> conflict : sheetConflicts) {
+            if (differentSheets(conflict)) {
+                SheetMerger merger = new SheetMerger(conflict, findAncestor(conflict), true,
+                        context.forConcurrentScan(scans));
+                merger.prepareConcurrentScan();
+                mergers.put(conflict, merger);
+            }
+        }
+        int threads = Math.max(1, Math.min(mergers.size(), Runtime.getRuntime().availableProcessors()));
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<?>> scanned = new ArrayList<Future<?>>();
+        boolean done = false;
+        try {
+            for (final SheetMerger merger : mergers.values()) {
+                scanned.add(executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        merger.scan();
+                    }
+                }));
+            }
+            for (Future<?> future : scanned)
+                future.get();
+            done = true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while merging sheets", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            if (e.getCause() instanceof Error)
+                throw (Error) e.getCause();
+            throw new IllegalStateException("Merging sheets failed", e.getCause());
+        } finally {
+            // scans which are still running are stopped, the merger has to be discarded anyway
+            if (!done)
+                scans.cancel();
+            executor.shutdown();
+        }
+        // scans read the result workbook, so it is changed only after all of them are done,
+        // in the same order as in sequential merge
+        for (Conflict<ISheet> conflict : sheetConflicts) {
+            SheetMerger merger = mergers.get(conflict);
+            if (merger != null) {
+                merger.join(context);
+                changeResult(sheetMergerChanges(merger));
+                sheetMergers.add(merger);
+            } else if (conflict.getSource() != null && conflict.getTarget() == null) {
+                changeResult(sheetImport(conflict.getSource()));
+            }
+        }
+    }
+
+    /**
+     * Merges again the parts of the workbooks which changed since they were merged. Used by MergeSession.
+     * Result must not be deferred. Sheets have to be merged already.
+     * @param changedTopics IDs of changed topics of source and target, by sheet ID.
+     * @param changedResultTopics IDs of topics added to or removed from result, by sheet ID.
+     * @param changedRelationships IDs of sheets with changed relationships.
+     * @param sheetsChanged if true, sheets were added or removed and are paired again. Sheets are also paired again
+     *                      if sheets without a sheet merger (identical when they were merged) changed.
+     */
+    void remergeSheets(Map<String, Set<String>> changedTopics, Map<String, Set<String>> changedResultTopics,
+                       Set<String> changedRelationships, boolean sheetsChanged) {
+        if (result == null || sheetMergers == null)
+            throw new IllegalStateException("Workbooks have to be merged before they are merged again");
+        // cached notes digests and style comparisons may be out of date
+        context.setStyleIdentityCache(new StyleIdentityCache(source, target));
+        Set<String> mergedSheetIds = new HashSet<String>();
+        for (SheetMerger merger : sheetMergers)
+            mergedSheetIds.add(merger.getSource().getId());
+        List<SheetMerger> newMergers = Collections.emptyList();
+        if (sheetsChanged || !mergedSheetIds.containsAll(changedTopics.keySet())
+                || !mergedSheetIds.containsAll(changedRelationships))
+            newMergers = repairSheets();
+        for (SheetMerger merger : sheetMergers) {
+            // new sheet mergers have just scanned their sheets
+            if (newMergers.contains(merger))
+                continue;
+            String sheetId = merger.getSource().getId();
+            Set<String> topicIds = changedTopics.get(sheetId);
+            Set<String> resultTopicIds = changedResultTopics.get(sheetId);
+            boolean relationshipsChanged = changedRelationships.contains(sheetId);
+            if (topicIds != null || resultTopicIds != null || relationshipsChanged) {
+                merger.rescan(topicIds == null ? Collections.<String>emptySet() : topicIds,
+                        resultTopicIds == null ? Collections.<String>emptySet() : resultTopicIds,
+                        relationshipsChanged);
+            }
+        }
+    }
+
+    /**
+     * Pairs sheets again and returns sheet mergers created for sheets which had none.
+     */
+    private List<SheetMerger> repairSheets() {
+        List<SheetMerger> newMergers = new ArrayList<SheetMerger>();
+        Map<String, SheetMerger> mergers = new HashMap<String, SheetMerger>();
+        for (SheetMerger merger : sheetMergers)
+            mergers.put(merger.getSource().getId(), merger);
+        List<SheetMerger> sheetMergers = new LinkedList<SheetMerger>();
+        for (Conflict<ISheet> conflict : MergeUtils.findCorrespondingElements(source.getSheets(), target.getSheets(),
+                result.getSheets())) {
+            if (conflict.getSource() == null || (conflict.getTarget() != null && conflict.getResult() == null))
+                continue;
+            SheetMerger merger = mergers.get(conflict.getSource().getId());
+            if (merger != null && conflict.getTarget() != null && conflict.getResult() != null) {
+                sheetMergers.add(merger);
+            } else if (conflict.getTarget() != null && differentSheets(conflict)) {
+                SheetMerger newMerger = new SheetMerger(conflict, findAncestor(conflict), false, context);
+                newMerger.scan();
+                sheetMergers.add(newMerger);
+                newMergers.add(newMerger);
+            } else if (conflict.getTarget() == null && conflict.getResult() == null) {
+                sheetImport(conflict.getSource()).run();
+            }
+        }
+        this.sheetMergers = sheetMergers;
+        return newMergers;
+    }
+
+    /**
+     * Compares styles again after some of them changed. Used by MergeSession. Result must not be deferred.
+     */
+    Map<String, List<Conflict<IStyle>>> remergeStyles() {
+        if (result == null)
+            throw new IllegalStateException("Cannot merge styles again without result");
+        context.setStyleIdentityCache(new StyleIdentityCache(source, target));
+        styleConflicts = null;
+        return mergeStyles();
+    }
+
+    private Runnable sheetImport(final ISheet sourceSheet) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                long start = context.getStats().startDetail();
+                result.addSheet((ISheet) result.importElement(sourceSheet));
+                context.getStats().elementImported(start);
+            }
+        };
+    }
+
+    private Runnable sheetMergerChanges(final SheetMerger merger) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                if (merger.getResult() == null)
+                    merger.bindResult(findSheet(result, merger.getTarget().getId()));
+                merger.applyDeferredChanges();
+            }
+        };
+    }
+
+    private static ISheet findSheet(IWorkbook workbook, String id) {
+        for (ISheet sheet : workbook.getSheets()) {
+            if (sheet.getId().equals(id))
+                return sheet;
+        }
+        return null;
+    }
+
+    private ISheet findAncestor(Conflict<ISheet> sheetConflict) {
+        if (!threeWayMerge)
+            return null;
+        return MergeUtils.findCommonAncestor(source, target, sheetConflict.getSource().getId());
+    }
+
+    private static boolean differentSheets(Conflict<ISheet> conflict) {
+        return conflict.getSource() != null
+                && conflict.getTarget() != null
+                && conflict.getSource().getModifiedTime() != conflict.getTarget().getModifiedTime();
+    }
+
     /**
-     * Returns the result of merge.
+     * Returns the result of merge. If the result was deferred, it is created by this call.
+     * @throws IllegalStateException thrown if deferred result could not be created, use createResult() to handle the cause.
      */
     public IWorkbook getResult() {
-        return result;
+        try {
+            return createResult();
+        } catch (WorkbookCloningException e) {
+            throw new IllegalStateException(CLONING_FAILED, e);
+        }
     }
 
     /**
@@ -84,8 +520,12 @@ public class WorkbookMerger extends Conflict {
      * IStyleSheet.AUTOMATIC_STYLES and IStyleSheet.MASTER_STYLES. Lists are stored in a map under those 3 string constants.
      * If there are no conflicts of styles of certain type, the corresponding list will be empty.
      * All changes should be applied to result styles.
+     * If styles were already merged, returns the same conflicts. Styles which already exist in result are not copied.
      */
     public Map<String, List<Conflict<IStyle>>> mergeStyles() {
+        if (this.styleConflicts != null)
+            return this.styleConflicts;
+        long start = System.nanoTime();
         Map<String, List<Conflict<IStyle>>> styleConflictsMap = new HashMap<String, List<Conflict<IStyle>>>();
 
         for (String styleGroup : Arrays.asList(
@@ -93,27 +533,50 @@ public class WorkbookMerger extends Conflict {
                 IStyleSheet.AUTOMATIC_STYLES,
                 IStyleSheet.MASTER_STYLES)) {
 
-            List<Conflict<IStyle>> styleTriples = MergeUtils.findCorrespondingElements(
-                    new ArrayList<IStyle>(source.getStyleSheet().getStyles(styleGroup)),
-                    new ArrayList<IStyle>(target.getStyleSheet().getStyles(styleGroup)),
-                    new ArrayList<IStyle>(result.getStyleSheet().getStyles(styleGroup))
+            ElementPairing<IStyle> styles = MergeUtils.pairElements(
+                    source.getStyleSheet().getStyles(styleGroup),
+                    target.getStyleSheet().getStyles(styleGroup),
+                    result == null ? null : result.getStyleSheet().getStyles(styleGroup)
             );
-            List<Conflict<IStyle>> styleConflicts = new LinkedList<Conflict<IStyle>>();
-            for (Conflict<IStyle> t : styleTriples) {
-                if (t.getSource() != null) {
-                    if (t.getTarget() != null) {
-                        if (!WorkbookElementsComparator.areIdentical(t.getSource(), t.getTarget()))
-                            styleConflicts.add(t);
-                    } else {
-                        result.getStyleSheet().addStyle(result.getStyleSheet().importStyle(t.getSource()), styleGroup);
+            final List<Conflict<IStyle>> styleConflicts = new LinkedList<Conflict<IStyle>>();
+            for (int i = 0; i < styles.size(); i++) {
+                IStyle sourceStyle = styles.getSource(i);
+                if (sourceStyle != null) {
+                    if (styles.getTarget(i) != null) {
+                        context.getStats().styleCompared();
+                        if (!context.getStyleIdentityCache().identicalStyles(source, sourceStyle.getId(),
+                                target, styles.getTarget(i).getId()))
+                            styleConflicts.add(new Conflict<IStyle>(sourceStyle, styles.getTarget(i), styles.getResult(i)));
+                    } else if (styles.getResult(i) == null) {
+                        changeResult(styleImport(sourceStyle, styleGroup));
                     }
                 }
             }
+            if (result == null) {
+                deferredChanges.add(new Runnable() {
+                    @Override
+                    public void run() {
+                        for (Conflict<IStyle> conflict : styleConflicts)
+                            conflict.setResult(result.getStyleSheet().findStyle(conflict.getSource().getId()));
+                    }
+                });
+            }
             styleConflictsMap.put(styleGroup, styleConflicts);
         }
 
+        this.styleConflicts = styleConflictsMap;
+        context.getStats().addTime(MergeStats.Phase.STYLES, System.nanoTime() - start);
         return styleConflictsMap;
     }
 
-
+    private Runnable styleImport(final IStyle sourceStyle, final String styleGroup) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                long start = context.getStats().startDetail();
+                result.getStyleSheet().addStyle(result.getStyleSheet().importStyle(sourceStyle), styleGroup);
+                context.getStats().elementImported(start);
+            }
+        };
+    }
 }
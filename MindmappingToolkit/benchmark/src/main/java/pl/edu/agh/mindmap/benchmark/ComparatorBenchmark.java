@@ -0,0 +1,124 @@
+package pl.edu.agh.mindmap.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.xmind.core.ISheet;
+import org.xmind.core.ITopic;
+import org.xmind.core.IWorkbook;
+import org.xmind.core.style.IStyle;
+import org.xmind.core.style.IStyleSheet;
+import pl.edu.agh.mindmap.merge.Pair;
+import pl.edu.agh.mindmap.merge.TopicComparator;
+import pl.edu.agh.mindmap.merge.TopicConflict;
+import pl.edu.agh.mindmap.merge.WorkbookElementsComparator;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures comparisons of corresponding elements of two workbooks.
+ * Every invocation compares all pairs of topics (or styles) which exist in both workbooks.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ComparatorBenchmark {
+    @Param({"1000", "10000"})
+    public int topicCount;
+
+    @Param({"0.1"})
+    public double divergenceRate;
+
+    @Param({"0.5"})
+    public double notesDensity;
+
+    @Param({"0.5"})
+    public double markerDensity;
+
+    @Param({"50"})
+    public int styleCount;
+
+    private List<Pair<ITopic>> topicPairs = new ArrayList<Pair<ITopic>>();
+    private List<Pair<IStyle>> stylePairs = new ArrayList<Pair<IStyle>>();
+
+    @Setup(Level.Trial)
+    public void generate() throws Exception {
+        Pair<IWorkbook> pair = new WorkbookPairGenerator()
+                .setTopicCount(topicCount)
+                .setDivergenceRate(divergenceRate)
+                .setNotesDensity(notesDensity)
+                .setMarkerDensity(markerDensity)
+                .setStyleCount(styleCount)
+                .generate();
+        IWorkbook source = pair.getLeft();
+        IWorkbook target = pair.getRight();
+        for (ISheet sourceSheet : source.getSheets()) {
+            ISheet targetSheet = (ISheet) target.findElement(sourceSheet.getId(), target);
+            collectTopicPairs(sourceSheet.getRootTopic(), target, targetSheet);
+        }
+        for (IStyle sourceStyle : source.getStyleSheet().getStyles(IStyleSheet.NORMAL_STYLES)) {
+            IStyle targetStyle = target.getStyleSheet().findStyle(sourceStyle.getId());
+            if (targetStyle != null)
+                stylePairs.add(new Pair<IStyle>(sourceStyle, targetStyle));
+        }
+    }
+
+    private void collectTopicPairs(ITopic sourceTopic, IWorkbook target, ISheet targetSheet) {
+        ITopic targetTopic = target.findTopic(sourceTopic.getId(), targetSheet);
+        if (targetTopic != null)
+            topicPairs.add(new Pair<ITopic>(sourceTopic, targetTopic));
+        for (ITopic child : sourceTopic.getAllChildren())
+            collectTopicPairs(child, target, targetSheet);
+    }
+
+    @Benchmark
+    public void topicConflict(Blackhole bh) {
+        for (Pair<ITopic> p : topicPairs)
+            bh.consume(new TopicConflict(p.getLeft(), p.getRight(), null).areEntirelyIdentical());
+    }
+
+    @Benchmark
+    public void identicalNotes(Blackhole bh) {
+        for (Pair<ITopic> p : topicPairs)
+            bh.consume(TopicComparator.identicalNotes(p.getLeft().getNotes(), p.getRight().getNotes()));
+    }
+
+    @Benchmark
+    public void identicalMarkerRefs(Blackhole bh) {
+        for (Pair<ITopic> p : topicPairs)
+            bh.consume(TopicComparator.identicalMarkerRefs(p.getLeft().getMarkerRefs(), p.getRight().getMarkerRefs()));
+    }
+
+    @Benchmark
+    public void identicalLabels(Blackhole bh) {
+        for (Pair<ITopic> p : topicPairs)
+            bh.consume(TopicComparator.identicalLabels(p.getLeft().getLabels(), p.getRight().getLabels()));
+    }
+
+    @Benchmark
+    public void identicalTopicStyles(Blackhole bh) {
+        for (Pair<ITopic> p : topicPairs)
+            bh.consume(WorkbookElementsComparator.identicalStyles(p.getLeft(), p.getRight()));
+    }
+
+    @Benchmark
+    public void identicalStyles(Blackhole bh) {
+        for (Pair<IStyle> p : stylePairs)
+            bh.consume(WorkbookElementsComparator.areIdentical(p.getLeft(), p.getRight()));
+    }
+}
@@ -0,0 +1,101 @@
+package pl.edu.agh.mindmap.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.xmind.core.IWorkbook;
+import org.xmind.core.style.IStyle;
+import pl.edu.agh.mindmap.merge.Conflict;
+import pl.edu.agh.mindmap.merge.Pair;
+import pl.edu.agh.mindmap.merge.SheetMerger;
+import pl.edu.agh.mindmap.merge.WorkbookMerger;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures whole workbook merges. A fresh WorkbookMerger is created for every invocation,
+ * so cloning of the target workbook is included in the results.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class MergeBenchmark {
+    @Param({"1000", "10000", "100000"})
+    public int topicCount;
+
+    @Param({"1", "20"})
+    public int sheetCount;
+
+    @Param({"6"})
+    public int depth;
+
+    @Param({"0.01", "0.1"})
+    public double divergenceRate;
+
+    @Param({"0.1"})
+    public double notesDensity;
+
+    @Param({"0.2"})
+    public double markerDensity;
+
+    @Param({"50"})
+    public int styleCount;
+
+    private IWorkbook source, target;
+
+    @Setup(Level.Trial)
+    public void generate() throws Exception {
+        Pair<IWorkbook> pair = new WorkbookPairGenerator()
+                .setTopicCount(topicCount)
+                .setSheetCount(sheetCount)
+                .setDepth(depth)
+                .setDivergenceRate(divergenceRate)
+                .setNotesDensity(notesDensity)
+                .setMarkerDensity(markerDensity)
+                .setStyleCount(styleCount)
+                .generate();
+        source = pair.getLeft();
+        target = pair.getRight();
+    }
+
+    @Benchmark
+    public List<SheetMerger> mergeSheets() throws Exception {
+        return new WorkbookMerger(source, target).mergeSheets();
+    }
+
+    @Benchmark
+    public List<SheetMerger> mergeSheetsInParallel() throws Exception {
+        return new WorkbookMerger(source, target).setParallelSheetMerging(true).mergeSheets();
+    }
+
+    @Benchmark
+    public List<SheetMerger> mergeSheetsWithDeferredResult() throws Exception {
+        return new WorkbookMerger(source, target, true).mergeSheets();
+    }
+
+    @Benchmark
+    public IWorkbook mergeSheetsWithDeferredResultAndCreateResult() throws Exception {
+        WorkbookMerger merger = new WorkbookMerger(source, target, true);
+        merger.mergeSheets();
+        return merger.createResult();
+    }
+
+    @Benchmark
+    public Map<String, List<Conflict<IStyle>>> mergeStyles() throws Exception {
+        return new WorkbookMerger(source, target).mergeStyles();
+    }
+}
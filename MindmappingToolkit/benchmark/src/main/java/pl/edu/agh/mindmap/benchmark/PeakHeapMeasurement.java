@@ -0,0 +1,100 @@
+package pl.edu.agh.mindmap.benchmark;
+
+import org.xmind.core.IWorkbook;
+import pl.edu.agh.mindmap.merge.MemoryBudget;
+import pl.edu.agh.mindmap.merge.Pair;
+import pl.edu.agh.mindmap.merge.WorkbookMerger;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+
+/**
+ * Measures peak and retained heap of a merge of workbooks with embedded attachments, with and without memory budget.
+ * Heap used by the generated workbooks is measured first and subtracted from the results.
+ * Fails with exit code 1 unless the merge with budget retains less heap than the merge without it,
+ * by at least half of the bytes of storages kept on disk.
+ * Usage: gradlew :benchmark:peakHeap [-PheapBudget=bytes]
+ */
+public class PeakHeapMeasurement {
+    public static void main(String[] args) throws Exception {
+        long heapBudget = args.length > 0 ? Long.parseLong(args[0]) : 4 * 1024 * 1024;
+        File cacheDir = new File(args.length > 1 ? args[1] : System.getProperty("java.io.tmpdir"));
+
+        Pair<IWorkbook> pair = new WorkbookPairGenerator()
+                .setTopicCount(5000)
+                .setAttachmentDensity(0.05)
+                .setAttachmentSize(64 * 1024)
+                .generate();
+
+        System.out.printf("workbooks: %d KB%n", usedHeap() / 1024);
+        Measurement withoutBudget = measureMerge(pair, null);
+        System.out.printf("merge without budget: peak %d KB, retained %d KB%n",
+                withoutBudget.peak / 1024, withoutBudget.retained / 1024);
+
+        MemoryBudget budget = new MemoryBudget(cacheDir, heapBudget);
+        Measurement withBudget;
+        long onDisk;
+        try {
+            withBudget = measureMerge(pair, budget);
+            onDisk = budget.getOnDisk();
+        } finally {
+            budget.release();
+        }
+        System.out.printf("merge with budget of %d KB: peak %d KB, retained %d KB, on disk %d KB%n",
+                heapBudget / 1024, withBudget.peak / 1024, withBudget.retained / 1024, onDisk / 1024);
+
+        if (onDisk == 0) {
+            System.out.println("FAILED: nothing was moved to disk, increase attachment density or lower the budget");
+            System.exit(1);
+        }
+        if (withoutBudget.retained - withBudget.retained < onDisk / 2) {
+            System.out.println("FAILED: storages on disk are still retained in the heap");
+            System.exit(1);
+        }
+    }
+
+    private static class Measurement {
+        long peak;
+        long retained;
+    }
+
+    private static Measurement measureMerge(Pair<IWorkbook> pair, MemoryBudget budget) throws Exception {
+        Measurement measurement = new Measurement();
+        long before = usedHeap();
+        resetPeaks();
+        WorkbookMerger merger = new WorkbookMerger(pair.getLeft(), pair.getRight(), false, budget);
+        merger.mergeSheets();
+        merger.mergeStyles();
+        measurement.peak = peakHeap() - before;
+        measurement.retained = usedHeap() - before;
+        // keep the merger reachable until the heap is measured
+        merger.getResult();
+        return measurement;
+    }
+
+    private static long usedHeap() {
+        System.gc();
+        long used = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP)
+                used += pool.getUsage().getUsed();
+        }
+        return used;
+    }
+
+    private static void resetPeaks() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+            pool.resetPeakUsage();
+    }
+
+    private static long peakHeap() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP)
+                peak += pool.getPeakUsage().getUsed();
+        }
+        return peak;
+    }
+}
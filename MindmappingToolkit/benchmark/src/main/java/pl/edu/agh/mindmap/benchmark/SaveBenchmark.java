@@ -0,0 +1,138 @@
+package pl.edu.agh.mindmap.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.xmind.core.Core;
+import org.xmind.core.IWorkbook;
+import pl.edu.agh.mindmap.local.AtomicFileOutputStream;
+import pl.edu.agh.mindmap.local.IncrementalZipWriter;
+import pl.edu.agh.mindmap.local.ZipFileStorage;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares saving of a workbook straight into a FileOutputStream with the atomic save
+ * through AtomicFileOutputStream and with the incremental save of a workbook loaded from an archive
+ * after a one-word edit. The workbook has about attachmentCount * 1 MB of attachments.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SaveBenchmark {
+    @Param({"100"})
+    public int attachmentCount;
+
+    @Param({"1000"})
+    public int topicCount;
+
+    private IWorkbook workbook;
+    private File file;
+    private File archive;
+    private ZipFileStorage storage;
+    private IWorkbook loaded;
+    private int edits;
+
+    @Setup(Level.Trial)
+    public void generate() throws Exception {
+        workbook = new WorkbookPairGenerator()
+                .setTopicCount(topicCount)
+                .setAttachmentDensity((double) attachmentCount / topicCount)
+                .setAttachmentSize(1024 * 1024)
+                .generate()
+                .getRight();
+        file = File.createTempFile("save-benchmark", ".xmind");
+        archive = File.createTempFile("save-benchmark-archive", ".xmind");
+        AtomicFileOutputStream out = new AtomicFileOutputStream(archive);
+        try {
+            workbook.save(out);
+            out.commit();
+        } finally {
+            out.close();
+        }
+        storage = new ZipFileStorage(archive);
+        loaded = Core.getWorkbookBuilder().loadFromStorage(storage);
+    }
+
+    @TearDown(Level.Trial)
+    public void delete() throws Exception {
+        storage.close();
+        file.delete();
+        archive.delete();
+    }
+
+    @Benchmark
+    public File saveToFileOutputStream() throws Exception {
+        OutputStream out = new FileOutputStream(file);
+        try {
+            workbook.save(out);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    @Benchmark
+    public File saveAtomically() throws Exception {
+        AtomicFileOutputStream out = new SyncingOutputStream(file);
+        try {
+            workbook.save(out);
+            out.commit();
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    @Benchmark
+    public File saveIncrementally() throws Exception {
+        loaded.getPrimarySheet().getRootTopic().setTitleText("edit " + edits++);
+        AtomicFileOutputStream out = new SyncingOutputStream(file);
+        try {
+            loaded.saveTemp();
+            new IncrementalZipWriter(storage).write(out);
+            out.commit();
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    /**
+     * Syncs the directory after commit as the app does, directories can be opened through java.nio on desktop.
+     */
+    private static class SyncingOutputStream extends AtomicFileOutputStream {
+        SyncingOutputStream(File file) throws IOException {
+            super(file);
+        }
+
+        @Override
+        protected void syncDirectory(File directory) throws IOException {
+            FileChannel channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ);
+            try {
+                channel.force(true);
+            } finally {
+                channel.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,258 @@
+package pl.edu.agh.mindmap.benchmark;
+
+import org.xmind.core.Core;
+import org.xmind.core.CoreException;
+import org.xmind.core.IFileEntry;
+import org.xmind.core.IHtmlNotesContent;
+import org.xmind.core.INotes;
+import org.xmind.core.IParagraph;
+import org.xmind.core.IPlainNotesContent;
+import org.xmind.core.ISheet;
+import org.xmind.core.ITopic;
+import org.xmind.core.IWorkbook;
+import org.xmind.core.io.ByteArrayStorage;
+import org.xmind.core.style.IStyle;
+import org.xmind.core.style.IStyleSheet;
+import org.xmind.core.util.HyperlinkUtils;
+import pl.edu.agh.mindmap.Utils;
+import pl.edu.agh.mindmap.merge.Pair;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generates pairs of source and target workbooks which share a common origin and then diverge.
+ * The same seed always produces the same pair.
+ * Left workbook of the returned pair is the source, right one is the target.
+ */
+public class WorkbookPairGenerator {
+    private static final String[] MARKERS = {"priority-1", "priority-2", "task-start", "task-done", "smiley-smile", "flag-red"};
+    private static final String[] WORDS = {"merge", "topic", "sheet", "branch", "idea", "plan", "note", "draft", "review", "task"};
+
+    private long seed = 1;
+    private int topicCount = 1000;
+    private int sheetCount = 1;
+    private int depth = 6;
+    private double divergenceRate = 0.05;
+    private double notesDensity = 0.1;
+    private double markerDensity = 0.2;
+    private int styleCount = 20;
+    private double attachmentDensity = 0;
+    private int attachmentSize = 64 * 1024;
+
+    private Random random;
+
+    public WorkbookPairGenerator setSeed(long seed) {
+        this.seed = seed;
+        return this;
+    }
+
+    /**
+     * Number of topics in each sheet of the common origin.
+     */
+    public WorkbookPairGenerator setTopicCount(int topicCount) {
+        this.topicCount = topicCount;
+        return this;
+    }
+
+    public WorkbookPairGenerator setSheetCount(int sheetCount) {
+        this.sheetCount = sheetCount;
+        return this;
+    }
+
+    /**
+     * Maximal depth of the topic tree, root topic has depth 0.
+     */
+    public WorkbookPairGenerator setDepth(int depth) {
+        this.depth = depth;
+        return this;
+    }
+
+    /**
+     * Fraction of topics modified in each of the workbooks after they diverged.
+     */
+    public WorkbookPairGenerator setDivergenceRate(double divergenceRate) {
+        this.divergenceRate = divergenceRate;
+        return this;
+    }
+
+    /**
+     * Fraction of topics with notes.
+     */
+    public WorkbookPairGenerator setNotesDensity(double notesDensity) {
+        this.notesDensity = notesDensity;
+        return this;
+    }
+
+    /**
+     * Fraction of topics with markers.
+     */
+    public WorkbookPairGenerator setMarkerDensity(double markerDensity) {
+        this.markerDensity = markerDensity;
+        return this;
+    }
+
+    public WorkbookPairGenerator setStyleCount(int styleCount) {
+        this.styleCount = styleCount;
+        return this;
+    }
+
+    /**
+     * Fraction of topics with an image attachment embedded in the workbook.
+     */
+    public WorkbookPairGenerator setAttachmentDensity(double attachmentDensity) {
+        this.attachmentDensity = attachmentDensity;
+        return this;
+    }
+
+    /**
+     * Size of each attachment in bytes.
+     */
+    public WorkbookPairGenerator setAttachmentSize(int attachmentSize) {
+        this.attachmentSize = attachmentSize;
+        return this;
+    }
+
+    public Pair<IWorkbook> generate() throws IOException, CoreException {
+        random = new Random(seed);
+        IWorkbook origin = Core.getWorkbookBuilder().createWorkbook();
+        origin.setTempStorage(new ByteArrayStorage());
+
+        List<IStyle> styles = createStyles(origin);
+        for (int i = 0; i < sheetCount; i++) {
+            ISheet sheet;
+            if (i == 0) {
+                sheet = origin.getPrimarySheet();
+            } else {
+                sheet = origin.createSheet();
+                sheet.replaceRootTopic(origin.createTopic());
+                origin.addSheet(sheet);
+            }
+            sheet.setTitleText("Sheet " + i);
+            fillSheet(origin, sheet, styles);
+        }
+
+        IWorkbook source = Utils.cloneWorkbook(origin);
+        IWorkbook target = Utils.cloneWorkbook(origin);
+        diverge(source);
+        diverge(target);
+        return new Pair<IWorkbook>(source, target);
+    }
+
+    private List<IStyle> createStyles(IWorkbook workbook) {
+        IStyleSheet styleSheet = workbook.getStyleSheet();
+        List<IStyle> styles = new ArrayList<IStyle>();
+        for (int i = 0; i < styleCount; i++) {
+            IStyle style = styleSheet.createStyle(IStyle.TOPIC);
+            style.setProperty("svg:fill", randomColor());
+            style.setProperty("fo:color", randomColor());
+            style.setProperty("fo:font-size", (8 + random.nextInt(24)) + "pt");
+            styleSheet.addStyle(style, IStyleSheet.NORMAL_STYLES);
+            styles.add(style);
+        }
+        return styles;
+    }
+
+    private void fillSheet(IWorkbook workbook, ISheet sheet, List<IStyle> styles) throws IOException {
+        ITopic root = sheet.getRootTopic();
+        root.setTitleText(randomText(2));
+        List<ITopic> parents = new ArrayList<ITopic>();
+        List<Integer> depths = new ArrayList<Integer>();
+        parents.add(root);
+        depths.add(0);
+        for (int i = 1; i < topicCount; i++) {
+            int parentIndex = random.nextInt(parents.size());
+            ITopic topic = createTopic(workbook, styles);
+            parents.get(parentIndex).add(topic);
+            int topicDepth = depths.get(parentIndex) + 1;
+            if (topicDepth < depth) {
+                parents.add(topic);
+                depths.add(topicDepth);
+            }
+        }
+    }
+
+    private ITopic createTopic(IWorkbook workbook, List<IStyle> styles) throws IOException {
+        ITopic topic = workbook.createTopic();
+        topic.setTitleText(randomText(3));
+        if (random.nextDouble() < notesDensity)
+            setNotes(workbook, topic);
+        if (random.nextDouble() < markerDensity)
+            topic.addMarker(MARKERS[random.nextInt(MARKERS.length)]);
+        if (!styles.isEmpty() && random.nextInt(4) == 0)
+            topic.setStyleId(styles.get(random.nextInt(styles.size())).getId());
+        if (random.nextDouble() < attachmentDensity)
+            attachImage(workbook, topic);
+        return topic;
+    }
+
+    private void attachImage(IWorkbook workbook, ITopic topic) throws IOException {
+        byte[] content = new byte[attachmentSize];
+        random.nextBytes(content);
+        IFileEntry entry = workbook.getManifest().createAttachmentFromStream(new ByteArrayInputStream(content), "image.png");
+        topic.getImage().setSource(HyperlinkUtils.toAttachmentURL(entry.getPath()));
+    }
+
+    private void setNotes(IWorkbook workbook, ITopic topic) {
+        String text = randomText(40);
+        IPlainNotesContent plain = (IPlainNotesContent) workbook.createNotesContent(INotes.PLAIN);
+        plain.setTextContent(text);
+        topic.getNotes().setContent(INotes.PLAIN, plain);
+
+        IHtmlNotesContent html = (IHtmlNotesContent) workbook.createNotesContent(INotes.HTML);
+        IParagraph paragraph = html.createParagraph();
+        paragraph.addSpan(html.createTextSpan(text));
+        html.addParagraph(paragraph);
+        topic.getNotes().setContent(INotes.HTML, html);
+    }
+
+    private void diverge(IWorkbook workbook) throws IOException {
+        List<IStyle> styles = new ArrayList<IStyle>(workbook.getStyleSheet().getStyles(IStyleSheet.NORMAL_STYLES));
+        for (ISheet sheet : workbook.getSheets()) {
+            List<ITopic> topics = new ArrayList<ITopic>();
+            collectTopics(sheet.getRootTopic(), topics);
+            int changes = (int) (topics.size() * divergenceRate);
+            for (int i = 0; i < changes; i++) {
+                ITopic topic = topics.get(random.nextInt(topics.size()));
+                switch (random.nextInt(4)) {
+                    case 0:
+                        topic.setTitleText(randomText(3));
+                        break;
+                    case 1:
+                        topic.setPosition(random.nextInt(1000), random.nextInt(1000));
+                        break;
+                    case 2:
+                        setNotes(workbook, topic);
+                        break;
+                    default:
+                        topic.add(createTopic(workbook, styles));
+                }
+            }
+        }
+        if (!styles.isEmpty())
+            styles.get(random.nextInt(styles.size())).setProperty("svg:fill", randomColor());
+    }
+
+    private static void collectTopics(ITopic topic, List<ITopic> topics) {
+        topics.add(topic);
+        for (ITopic child : topic.getAllChildren())
+            collectTopics(child, topics);
+    }
+
+    private String randomText(int words) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < words; i++) {
+            if (i > 0)
+                sb.append(' ');
+            sb.append(WORDS[random.nextInt(WORDS.length)]);
+        }
+        return sb.toString();
+    }
+
+    private String randomColor() {
+        return String.format("#%06x", random.nextInt(0x1000000));
+    }
+}